@@ -0,0 +1,154 @@
+package flightapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses one command line in the CLI syntax from the README and runs it against a session.
+ *
+ * City names containing spaces must be quoted, e.g. {@code search "Seattle WA" "Boston MA" 1 1
+ * 3}.
+ */
+final class CommandDispatcher {
+  private static final Pattern TOKEN = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
+  private final FlightTransactions transactions;
+
+  CommandDispatcher(FlightTransactions transactions) {
+    this.transactions = transactions;
+  }
+
+  /**
+   * Runs {@code command} for {@code session} and returns the response text.
+   */
+  String execute(Session session, String command) {
+    ResponseSink.Text out = new ResponseSink.Text();
+    execute(session, command, out);
+    return out.text();
+  }
+
+  /**
+   * Runs {@code command} for {@code session}, writing the response to {@code out}.
+   */
+  void execute(Session session, String command, ResponseSink out) {
+    String[] tokens = tokenize(command.trim());
+    if (tokens.length == 0) {
+      out.message("Please enter a command\n");
+      return;
+    }
+
+    try {
+      switch (tokens[0]) {
+        case "search":
+          if (tokens.length < 6 || tokens.length > 8) {
+            out.message("Error: Please provide all search parameters <origin_city> <dest_city> "
+                        + "<direct> <day_of_month> <num_itineraries> [max_stops] [ranking]\n");
+            return;
+          }
+          // max_stops only widens an indirect search; a direct one has no stops
+          int maxStops = tokens[3].equals("1") ? 0
+            : (tokens.length >= 7) ? Integer.parseInt(tokens[6]) : 1;
+          Itinerary.Ranking ranking = Itinerary.Ranking.DURATION;
+          if (tokens.length == 8) {
+            try {
+              ranking = Itinerary.Ranking.valueOf(tokens[7].toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) {
+              out.message("Error: ranking must be duration, price or pareto\n");
+              return;
+            }
+          }
+          transactions.search(session, tokens[1], tokens[2], maxStops, ranking,
+                              Integer.parseInt(tokens[4]), Integer.parseInt(tokens[5]), out);
+          return;
+
+        case "flexsearch":
+          if (tokens.length != 8 && tokens.length != 9) {
+            out.message("Error: Please provide all search parameters <origin_city> <dest_city> "
+                        + "<direct> <first_day> <last_day> <num_itineraries> <per_day> "
+                        + "[max_stops]\n");
+            return;
+          }
+          int maxFlexStops = tokens[3].equals("1") ? 0
+            : (tokens.length == 9) ? Integer.parseInt(tokens[8]) : 1;
+          transactions.searchDays(session, tokens[1], tokens[2], maxFlexStops,
+                                  Integer.parseInt(tokens[4]), Integer.parseInt(tokens[5]),
+                                  Integer.parseInt(tokens[6]), tokens[7].equals("1"), out);
+          return;
+
+        case "reservations":
+          transactions.reservations(session, out);
+          return;
+
+        default:
+          out.message(executeShort(session, tokens));
+      }
+    } catch (NumberFormatException ex) {
+      out.message("Failed to parse integer\n");
+    }
+  }
+
+  // The commands whose responses are a line or two
+  private String executeShort(Session session, String[] tokens) {
+    switch (tokens[0]) {
+      case "login":
+        if (tokens.length != 3) {
+          return "Error: Please provide a username and password\n";
+        }
+        return transactions.login(session, tokens[1], tokens[2]);
+
+      case "create":
+        if (tokens.length != 4) {
+          return "Error: Please provide a username, password, and initial amount in the "
+            + "account\n";
+        }
+        return transactions.createCustomer(tokens[1], tokens[2], Integer.parseInt(tokens[3]));
+
+      case "book":
+        if (tokens.length < 2) {
+          return "Error: Please provide an itinerary_id\n";
+        }
+        return transactions.book(session, parseInts(tokens, 1), 1);
+
+      case "groupbook":
+        if (tokens.length < 3) {
+          return "Error: Please provide a number of seats and at least one itinerary_id\n";
+        }
+        return transactions.book(session, parseInts(tokens, 2), Integer.parseInt(tokens[1]));
+
+      case "pay":
+        if (tokens.length != 2) {
+          return "Error: Please provide a reservation_id\n";
+        }
+        return transactions.pay(session, Integer.parseInt(tokens[1]));
+
+      case "stats":
+        return transactions.stats();
+
+      case "quit":
+        return "Goodbye\n";
+
+      default:
+        return "Error: unrecognized command '" + tokens[0] + "'\n";
+    }
+  }
+
+  private static int[] parseInts(String[] tokens, int from) {
+    int[] values = new int[tokens.length - from];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = Integer.parseInt(tokens[from + i]);
+    }
+    return values;
+  }
+
+  static String[] tokenize(String command) {
+    List<String> tokens = new ArrayList<>();
+    Matcher m = TOKEN.matcher(command);
+    while (m.find()) {
+      tokens.add((m.group(1) != null) ? m.group(1) : m.group(2));
+    }
+    return tokens.toArray(new String[0]);
+  }
+}
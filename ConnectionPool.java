@@ -0,0 +1,155 @@
+package flightapp;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of database connections shared by every session.
+ *
+ * Connections are opened lazily up to {@code maxSize}; a transaction borrows one for its
+ * duration and hands it back on {@link PooledConnection#close()}. Each pooled connection keeps
+ * its own prepared-statement cache, so statements are prepared once per connection rather than
+ * once per session.
+ */
+final class ConnectionPool implements AutoCloseable {
+  private static final long BORROW_TIMEOUT_MS = 30_000;
+
+  /**
+   * Opens a new physical connection.
+   */
+  @FunctionalInterface
+  interface ConnectionFactory {
+    Connection open() throws SQLException;
+  }
+
+  private final ConnectionFactory factory;
+  private final Semaphore permits;
+  private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+
+  ConnectionPool(ConnectionFactory factory, int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    }
+    this.factory = factory;
+    this.permits = new Semaphore(maxSize, true);
+  }
+
+  /**
+   * Builds a pool for the database described in a dbconn.properties style file.
+   */
+  static ConnectionPool fromProperties(String path, int maxSize) throws IOException {
+    Properties configProps = loadProperties(path);
+    String connectionUrl = connectionUrl(configProps,
+                                         configProps.getProperty("flightapp.server_url"));
+
+    return new ConnectionPool(() -> {
+      Connection conn = DriverManager.getConnection(connectionUrl);
+      conn.setAutoCommit(true);
+      conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+      return conn;
+    }, maxSize);
+  }
+
+  /**
+   * Builds a pool for read-only work on the server named by flightapp.read_server_url in a
+   * dbconn.properties style file, typically a readable secondary. Its connections declare a
+   * read-only application intent, so an availability group listener routes them to a
+   * secondary, and open at the read isolation level {@link TransactionRunner} uses.
+   *
+   * @return the pool, or null if the file names no read server
+   */
+  static ConnectionPool readReplicaFromProperties(String path, int maxSize) throws IOException {
+    Properties configProps = loadProperties(path);
+    String readServerURL = configProps.getProperty("flightapp.read_server_url");
+    if (readServerURL == null || readServerURL.trim().isEmpty()) {
+      return null;
+    }
+    String connectionUrl = connectionUrl(configProps, readServerURL.trim())
+      + ";applicationIntent=ReadOnly";
+    int isolation = TransactionRunner.readIsolationFromSystemProperties();
+
+    return new ConnectionPool(() -> {
+      Connection conn = DriverManager.getConnection(connectionUrl);
+      conn.setAutoCommit(true);
+      conn.setReadOnly(true);
+      conn.setTransactionIsolation(isolation);
+      return conn;
+    }, maxSize);
+  }
+
+  private static Properties loadProperties(String path) throws IOException {
+    Properties configProps = new Properties();
+    try (InputStream in = new FileInputStream(path)) {
+      configProps.load(in);
+    }
+    return configProps;
+  }
+
+  private static String connectionUrl(Properties configProps, String serverURL) {
+    String dbName = configProps.getProperty("flightapp.database_name");
+    String adminName = configProps.getProperty("flightapp.username");
+    String password = configProps.getProperty("flightapp.password");
+    return String.format("jdbc:sqlserver://%s:1433;databaseName=%s;user=%s;password=%s",
+                         serverURL, dbName, adminName, password);
+  }
+
+  /**
+   * Takes a connection from the pool, opening a new one if none is idle and the pool is not at
+   * its limit. Blocks while all connections are in use.
+   *
+   * @throws SQLException if no connection frees up before the borrow timeout
+   */
+  PooledConnection borrow() throws SQLException {
+    try {
+      if (!permits.tryAcquire(BORROW_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        throw new SQLException("Timed out waiting for a pooled connection");
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a pooled connection", ex);
+    }
+
+    PooledConnection pooled = idle.pollFirst();
+    if (pooled != null) {
+      return pooled;
+    }
+    try {
+      return new PooledConnection(this, factory.open());
+    } catch (SQLException | RuntimeException ex) {
+      permits.release();
+      throw ex;
+    }
+  }
+
+  /**
+   * Returns a healthy connection to the pool.
+   */
+  void release(PooledConnection pooled) {
+    idle.addFirst(pooled);
+    permits.release();
+  }
+
+  /**
+   * Drops a connection that can no longer be trusted, freeing its slot for a new one.
+   */
+  void discard(PooledConnection pooled) {
+    pooled.closePhysical();
+    permits.release();
+  }
+
+  @Override
+  public void close() {
+    PooledConnection pooled;
+    while ((pooled = idle.pollFirst()) != null) {
+      pooled.closePhysical();
+    }
+  }
+}
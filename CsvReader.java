@@ -0,0 +1,208 @@
+package flightapp;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Streaming reader for the CSV files the FLIGHTS data ships as, in the dialect BULK INSERT's
+ * FORMAT='CSV' reads: comma-separated, optionally double-quoted fields with {@code ""} as an
+ * escaped quote, LF or CRLF line ends, UTF-8 with an optional byte order mark. An empty unquoted
+ * field is NULL.
+ *
+ * The file is memory-mapped a window at a time and never copied into the heap as a whole; a row
+ * is only a list of field offsets into the mapping. Integers are parsed straight from the bytes,
+ * so only string fields that are actually read allocate anything.
+ */
+final class CsvReader implements AutoCloseable {
+  private static final int WINDOW = 1 << 26;
+
+  /**
+   * Receives each row. The row is only valid during the call.
+   */
+  @FunctionalInterface
+  interface RowHandler<E extends Exception> {
+    void row(Row row) throws E;
+  }
+
+  /**
+   * The current row, as offsets into the mapped window.
+   */
+  final class Row {
+    private int count;
+    private int[] starts = new int[32];
+    private int[] ends = new int[32];
+    private boolean[] quoted = new boolean[32];
+
+    int fieldCount() {
+      return count;
+    }
+
+    boolean isNull(int field) {
+      return field >= count || (!quoted[field] && starts[field] == ends[field]);
+    }
+
+    /**
+     * @throws NumberFormatException if the field is NULL or not an integer
+     */
+    int getInt(int field) {
+      if (isNull(field)) {
+        throw new NumberFormatException("Field " + field + " is NULL");
+      }
+      int pos = starts[field];
+      int end = ends[field];
+      while (pos < end && window.get(pos) == ' ') {
+        ++pos;
+      }
+      while (end > pos && window.get(end - 1) == ' ') {
+        --end;
+      }
+      boolean negative = pos < end && window.get(pos) == '-';
+      if (negative) {
+        ++pos;
+      }
+      if (pos == end) {
+        throw new NumberFormatException("Field " + field + " is not an integer");
+      }
+      long value = 0;
+      for (; pos < end; ++pos) {
+        int digit = window.get(pos) - '0';
+        if (digit < 0 || digit > 9) {
+          throw new NumberFormatException("Field " + field + " is not an integer");
+        }
+        value = value * 10 + digit;
+        if (value > Integer.MAX_VALUE + 1L) {
+          throw new NumberFormatException("Field " + field + " is out of range");
+        }
+      }
+      return (int) (negative ? -value : value);
+    }
+
+    /**
+     * @return the field's text, or null if it is NULL
+     */
+    String getString(int field) {
+      if (isNull(field)) {
+        return null;
+      }
+      byte[] bytes = new byte[ends[field] - starts[field]];
+      window.get(starts[field], bytes);
+      String value = new String(bytes, StandardCharsets.UTF_8);
+      return quoted[field] ? value.replace("\"\"", "\"") : value;
+    }
+
+    private void add(int start, int end, boolean isQuoted) {
+      if (count == starts.length) {
+        starts = Arrays.copyOf(starts, count * 2);
+        ends = Arrays.copyOf(ends, count * 2);
+        quoted = Arrays.copyOf(quoted, count * 2);
+      }
+      // A quoted field's offsets exclude the quotes
+      starts[count] = isQuoted ? start + 1 : start;
+      ends[count] = isQuoted ? Math.max(start + 1, end - 1) : end;
+      quoted[count] = isQuoted;
+      ++count;
+    }
+  }
+
+  private final FileChannel channel;
+  private final Row row = new Row();
+  private MappedByteBuffer window;
+
+  CsvReader(Path path) throws IOException {
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+  }
+
+  /**
+   * Calls {@code handler} for every non-empty row in the file.
+   *
+   * @return the number of rows read
+   */
+  <E extends Exception> long read(RowHandler<E> handler) throws IOException, E {
+    long size = channel.size();
+    long base = 0;
+    long rows = 0;
+    while (base < size) {
+      int length = (int) Math.min(WINDOW, size - base);
+      boolean last = base + length == size;
+      window = channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+
+      int pos = (base == 0) ? skipByteOrderMark(length) : 0;
+      while (pos < length) {
+        int next = scanRow(pos, length, last);
+        if (next < 0) {
+          break;
+        }
+        if (row.count > 1 || !row.isNull(0)) {
+          handler.row(row);
+          ++rows;
+        }
+        pos = next;
+      }
+      if (pos == 0) {
+        throw new IOException("Row at byte " + base + " is longer than " + WINDOW + " bytes");
+      }
+      base += pos;
+    }
+    return rows;
+  }
+
+  @Override
+  public void close() throws IOException {
+    window = null;
+    channel.close();
+  }
+
+  /**
+   * Splits the row starting at {@code pos} into fields.
+   *
+   * @return the offset just past the row's line end, or -1 if the row continues past the window
+   */
+  private int scanRow(int pos, int limit, boolean atEnd) {
+    row.count = 0;
+    int fieldStart = pos;
+    boolean inQuotes = false;
+    boolean isQuoted = false;
+    for (int i = pos; i < limit; ++i) {
+      byte b = window.get(i);
+      if (inQuotes) {
+        if (b == '"') {
+          if (i + 1 < limit && window.get(i + 1) == '"') {
+            ++i;
+          } else {
+            inQuotes = false;
+          }
+        }
+      } else if (b == '"' && i == fieldStart) {
+        inQuotes = true;
+        isQuoted = true;
+      } else if (b == ',') {
+        row.add(fieldStart, i, isQuoted);
+        fieldStart = i + 1;
+        isQuoted = false;
+      } else if (b == '\n') {
+        int end = (i > fieldStart && window.get(i - 1) == '\r') ? i - 1 : i;
+        row.add(fieldStart, end, isQuoted);
+        return i + 1;
+      }
+    }
+    if (!atEnd) {
+      return -1;
+    }
+    int end = (limit > fieldStart && window.get(limit - 1) == '\r') ? limit - 1 : limit;
+    row.add(fieldStart, end, isQuoted);
+    return limit;
+  }
+
+  private int skipByteOrderMark(int length) {
+    if (length >= 3 && (window.get(0) & 0xff) == 0xef && (window.get(1) & 0xff) == 0xbb
+        && (window.get(2) & 0xff) == 0xbf) {
+      return 3;
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,49 @@
+package flightapp;
+
+/**
+ * One row of FLIGHTS, as ints only: the carrier and city names are {@link SymbolTable} ids and
+ * are resolved when the flight is formatted.
+ */
+class Flight {
+  private static final SymbolTable SYMBOLS = SymbolTable.getInstance();
+
+  public final int fid;
+  public final int dayOfMonth;
+  public final int carrier;
+  public final int flightNum;
+  public final int origin;
+  public final int dest;
+  public final int time;
+  public final int capacity;
+  public final int price;
+
+  Flight(int id, int day, int carrier, int fnum, int origin, int dest, int tm, int cap,
+         int pri) {
+    fid = id;
+    dayOfMonth = day;
+    this.carrier = carrier;
+    flightNum = fnum;
+    this.origin = origin;
+    this.dest = dest;
+    time = tm;
+    capacity = cap;
+    price = pri;
+  }
+
+  Flight(int id, int day, String carrier, int fnum, String origin, String dest, int tm,
+         int cap, int pri) {
+    this(id, day, SYMBOLS.intern(carrier), fnum, SYMBOLS.intern(origin), SYMBOLS.intern(dest),
+         tm, cap, pri);
+  }
+
+  String carrierId() { return SYMBOLS.name(carrier); }
+  String originCity() { return SYMBOLS.name(origin); }
+  String destCity() { return SYMBOLS.name(dest); }
+
+  @Override
+  public final String toString() {
+    return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId() + " Number: "
+        + flightNum + " Origin: " + originCity() + " Dest: " + destCity() + " Duration: " + time
+        + " Capacity: " + capacity + " Price: " + price;
+  }
+}
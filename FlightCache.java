@@ -0,0 +1,184 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Process-wide, read-through cache of FLIGHTS rows keyed by fid.
+ *
+ * Flight rows never change after import, so a cached entry never goes stale. Entries are kept in
+ * primitive columns addressed directly by fid (in fixed-size pages, allocated as fids are seen)
+ * instead of a map of boxed keys, and the string columns hold {@link SymbolTable} ids. A lookup is
+ * two array reads plus the allocation of the returned {@link Flight}.
+ *
+ * Lookups never block. Writers fill a slot's columns before publishing it through the page's
+ * {@code present} flags, so a reader that sees the flag also sees the data.
+ */
+final class FlightCache {
+  private static final String GET_FLIGHT_INFO_SQL
+    = "  SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time,"
+    + "         capacity, price"
+    + "    FROM Flights"
+    + "   WHERE fid = ?";
+
+  private static final String LOAD_FLIGHTS_SQL
+    = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time,"
+    + "       capacity, price"
+    + "  FROM Flights";
+
+  private static final int PAGE_BITS = 12;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+  private static final FlightCache INSTANCE = new FlightCache();
+
+  private volatile Page[] pages = new Page[0];
+
+  private final SymbolTable symbols = SymbolTable.getInstance();
+
+  static {
+    Metrics.nameStatements(FlightCache.class);
+  }
+
+  private FlightCache() {
+  }
+
+  /**
+   * @return the process-wide cache
+   */
+  static FlightCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the flight with the given fid, reading it through {@code conn} on a miss.
+   *
+   * @return the flight, or null if there is no such fid
+   */
+  Flight get(PooledConnection conn, int fid) throws SQLException {
+    Flight flight = getIfPresent(fid);
+    if (flight != null) {
+      return flight;
+    }
+
+    PreparedStatement stmt = conn.prepare(GET_FLIGHT_INFO_SQL);
+    stmt.setInt(1, fid);
+    try (ResultSet results = stmt.executeQuery()) {
+      if (!results.next()) {
+        return null;
+      }
+      put(results);
+    }
+    return getIfPresent(fid);
+  }
+
+  /**
+   * @return the cached flight, or null if it has not been loaded
+   */
+  Flight getIfPresent(int fid) {
+    if (fid < 0) {
+      return null;
+    }
+    Page[] snapshot = pages;
+    int pageNum = fid >>> PAGE_BITS;
+    if (pageNum >= snapshot.length || snapshot[pageNum] == null) {
+      return null;
+    }
+    Page page = snapshot[pageNum];
+    int slot = fid & (PAGE_SIZE - 1);
+    if (page.present.get(slot) == 0) {
+      return null;
+    }
+    return new Flight(fid, page.days[slot], page.carriers[slot], page.flightNums[slot],
+                      page.origins[slot], page.dests[slot], page.times[slot],
+                      page.capacities[slot], page.prices[slot]);
+  }
+
+  /**
+   * Makes sure every fid in {@code fids} is cached, fetching all of the missing ones in a single
+   * query. Negative fids are ignored.
+   */
+  void preload(PooledConnection conn, int[] fids) throws SQLException {
+    StringBuilder missing = new StringBuilder();
+    for (int fid : fids) {
+      if (fid >= 0 && getIfPresent(fid) == null) {
+        missing.append((missing.length() == 0) ? "" : ",").append(fid);
+      }
+    }
+    if (missing.length() == 0) {
+      return;
+    }
+    String sql = LOAD_FLIGHTS_SQL + " WHERE fid IN (" + missing + ")";
+    try (Statement stmt = conn.createStatement();
+         ResultSet results = stmt.executeQuery(sql)) {
+      while (results.next()) {
+        put(results);
+      }
+    }
+  }
+
+  /**
+   * Loads the whole FLIGHTS table so later lookups never go to the database.
+   */
+  void warm(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement();
+         ResultSet results = stmt.executeQuery(LOAD_FLIGHTS_SQL)) {
+      while (results.next()) {
+        put(results);
+      }
+    }
+  }
+
+  private void put(ResultSet results) throws SQLException {
+    int fid = results.getInt("fid");
+    if (fid < 0) {
+      return;
+    }
+    Page page = page(fid >>> PAGE_BITS);
+    int slot = fid & (PAGE_SIZE - 1);
+    page.days[slot] = results.getInt("day_of_month");
+    page.carriers[slot] = symbols.intern(results.getString("carrier_id"));
+    page.flightNums[slot] = results.getInt("flight_num");
+    page.origins[slot] = symbols.intern(results.getString("origin_city"));
+    page.dests[slot] = symbols.intern(results.getString("dest_city"));
+    page.times[slot] = results.getInt("actual_time");
+    page.capacities[slot] = results.getInt("capacity");
+    page.prices[slot] = results.getInt("price");
+    page.present.set(slot, 1);
+  }
+
+  private Page page(int pageNum) {
+    Page[] snapshot = pages;
+    if (pageNum < snapshot.length && snapshot[pageNum] != null) {
+      return snapshot[pageNum];
+    }
+    synchronized (this) {
+      snapshot = pages;
+      if (pageNum >= snapshot.length) {
+        Page[] grown = new Page[Math.max(pageNum + 1, snapshot.length * 2)];
+        System.arraycopy(snapshot, 0, grown, 0, snapshot.length);
+        snapshot = grown;
+      }
+      if (snapshot[pageNum] == null) {
+        snapshot[pageNum] = new Page();
+      }
+      pages = snapshot;
+      return snapshot[pageNum];
+    }
+  }
+
+  private static final class Page {
+    final int[] days = new int[PAGE_SIZE];
+    final int[] carriers = new int[PAGE_SIZE];
+    final int[] flightNums = new int[PAGE_SIZE];
+    final int[] origins = new int[PAGE_SIZE];
+    final int[] dests = new int[PAGE_SIZE];
+    final int[] times = new int[PAGE_SIZE];
+    final int[] capacities = new int[PAGE_SIZE];
+    final int[] prices = new int[PAGE_SIZE];
+    final AtomicIntegerArray present = new AtomicIntegerArray(PAGE_SIZE);
+  }
+}
@@ -0,0 +1,105 @@
+package flightapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Blocking client for the {@link FlightServer} protocol.
+ *
+ * {@link #send} only buffers a command, so a caller can pipeline several and then
+ * {@link #receive} their responses, which arrive in the order the commands were sent.
+ *
+ * Run on its own it reads commands from standard input, one per line, and prints the server's
+ * responses, like the CLI does:
+ * <pre>
+ *   java -cp out flightapp.FlightClient [--host localhost] [--port 9090]
+ * </pre>
+ */
+final class FlightClient implements AutoCloseable {
+  private final Socket socket;
+  private final DataInputStream in;
+  private final DataOutputStream out;
+
+  FlightClient(String host, int port) throws IOException {
+    this.socket = new Socket(host, port);
+    socket.setTcpNoDelay(true);
+    this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+  }
+
+  /**
+   * Buffers {@code command} to be sent with the next {@link #flush}.
+   */
+  void send(String command) throws IOException {
+    byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > FlightServer.MAX_COMMAND_BYTES) {
+      throw new IllegalArgumentException("Command is longer than "
+                                         + FlightServer.MAX_COMMAND_BYTES + " bytes");
+    }
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * Waits for the response to the oldest command whose response has not been received yet.
+   */
+  String receive() throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Sends {@code command} and waits for its response.
+   */
+  String execute(String command) throws IOException {
+    send(command);
+    flush();
+    return receive();
+  }
+
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+
+  public static void main(String[] args) throws IOException {
+    String host = "localhost";
+    int port = 9090;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "--host": host = args[i + 1]; break;
+        case "--port": port = Integer.parseInt(args[i + 1]); break;
+        default:
+          System.err.println("Unknown option " + args[i]);
+          System.exit(1);
+      }
+    }
+
+    try (FlightClient client = new FlightClient(host, port);
+         BufferedReader stdin
+           = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+      for (String line; (line = stdin.readLine()) != null; ) {
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        System.out.print(client.execute(line));
+        if (line.trim().equals("quit")) {
+          break;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package flightapp;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/**
+ * Writes a {@link FlightIndex} snapshot that services can map at startup with
+ * -Dflightapp.flights_snapshot instead of reading FLIGHTS over JDBC.
+ *
+ * Usage:
+ * <pre>
+ *   java -cp out:mssql-jdbc.jar flightapp.FlightExporter (--db dbconn.properties | --csv file)
+ *        [--out flights.snapshot]
+ * </pre>
+ * The snapshot only depends on FLIGHTS, so it has to be exported again after FLIGHTS is
+ * reloaded.
+ */
+final class FlightExporter {
+  public static void main(String[] args) throws Exception {
+    String dbPath = null;
+    String csvPath = null;
+    String outPath = "flights.snapshot";
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "--db": dbPath = args[i + 1]; break;
+        case "--csv": csvPath = args[i + 1]; break;
+        case "--out": outPath = args[i + 1]; break;
+        default:
+          System.err.println("Unknown option " + args[i]);
+          System.exit(1);
+      }
+    }
+    if ((dbPath == null) == (csvPath == null)) {
+      System.err.println("Exactly one of --db <dbconn.properties> and --csv <flights csv> is "
+                         + "required");
+      System.exit(1);
+    }
+
+    long start = System.nanoTime();
+    FlightIndex index;
+    if (csvPath != null) {
+      index = FlightIndex.fromCsv(Paths.get(csvPath));
+    } else {
+      try (ConnectionPool pool = ConnectionPool.fromProperties(dbPath, 1);
+           PooledConnection conn = pool.borrow()) {
+        index = FlightIndex.load(conn.connection());
+      }
+    }
+    double loadSeconds = (System.nanoTime() - start) / 1e9;
+
+    Path out = Paths.get(outPath);
+    index.writeSnapshot(out);
+    start = System.nanoTime();
+    FlightIndex mapped = FlightIndex.mapSnapshot(out);
+    double mapSeconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf(Locale.ROOT, "Wrote %d flights to %s: loaded in %.2f s, maps in %.3f s%n",
+                      mapped.size(), out, loadSeconds, mapSeconds);
+  }
+}
@@ -0,0 +1,270 @@
+package flightapp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loads the carriers, months, weekdays and flights CSV files from a local directory into the
+ * tables of createFlightsTables.sql, without the blob storage data source import.sql needs.
+ *
+ * Files are streamed through {@link CsvReader} and inserted with multi-row INSERT statements
+ * (as many rows per statement as SQL Server's 2100-parameter limit allows), sent in JDBC batches
+ * and committed every {@code --commit-rows} rows. The indexes in indexes.sql are dropped before
+ * the load and created once it is done, so they are built in one pass instead of being updated
+ * row by row.
+ *
+ * Usage:
+ * <pre>
+ *   java -cp out:mssql-jdbc.jar flightapp.FlightImporter --db dbconn.properties --dir csvdir
+ *        [--flights flights-small.csv] [--indexes indexes.sql] [--batch n] [--commit-rows n]
+ * </pre>
+ * The tables must exist and be empty.
+ */
+final class FlightImporter {
+  private static final Pattern CREATE_INDEX
+    = Pattern.compile("(?i)create\\s+index\\s+(\\w+)\\s+on\\s+(\\w+)");
+
+  private static final int MAX_PARAMETERS = 2000;
+  private static final int MAX_ROWS_PER_INSERT = 1000;
+
+  /**
+   * A table to load, with one type letter per column: {@code i} for INT, {@code s} for VARCHAR.
+   */
+  private static final class Table {
+    final String name;
+    final String columnTypes;
+    final String file;
+
+    Table(String name, String columnTypes, String file) {
+      this.name = name;
+      this.columnTypes = columnTypes;
+      this.file = file;
+    }
+  }
+
+  private final Connection conn;
+  private final int statementsPerBatch;
+  private final int commitRows;
+
+  FlightImporter(Connection conn, int statementsPerBatch, int commitRows) {
+    this.conn = conn;
+    this.statementsPerBatch = statementsPerBatch;
+    this.commitRows = commitRows;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String dbPath = "dbconn.properties";
+    String dir = ".";
+    String flightsFile = "flights-small.csv";
+    String indexesFile = "indexes.sql";
+    int statementsPerBatch = 16;
+    int commitRows = 200_000;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "--db": dbPath = args[i + 1]; break;
+        case "--dir": dir = args[i + 1]; break;
+        case "--flights": flightsFile = args[i + 1]; break;
+        case "--indexes": indexesFile = args[i + 1]; break;
+        case "--batch": statementsPerBatch = Integer.parseInt(args[i + 1]); break;
+        case "--commit-rows": commitRows = Integer.parseInt(args[i + 1]); break;
+        default:
+          System.err.println("Unknown option " + args[i]);
+          System.exit(1);
+      }
+    }
+
+    Table[] tables = {
+      new Table("Carriers", "ss", "carriers.csv"),
+      new Table("Months", "is", "months.csv"),
+      new Table("Weekdays", "is", "weekdays.csv"),
+      new Table("Flights", "iiiisissssiiiiiiii", flightsFile),
+    };
+
+    List<String> indexes = readStatements(Paths.get(indexesFile));
+    try (ConnectionPool pool = ConnectionPool.fromProperties(dbPath, 1);
+         PooledConnection pooled = pool.borrow()) {
+      FlightImporter importer
+        = new FlightImporter(pooled.connection(), statementsPerBatch, commitRows);
+      importer.dropIndexes(indexes);
+      for (Table table : tables) {
+        importer.load(table, Paths.get(dir, table.file));
+      }
+      importer.createIndexes(indexes);
+    }
+  }
+
+  /**
+   * Streams {@code csv} into {@code table} and prints the load rate.
+   */
+  void load(Table table, Path csv) throws IOException, SQLException {
+    long start = System.nanoTime();
+    conn.setAutoCommit(false);
+    try (CsvReader reader = new CsvReader(csv);
+         Loader loader = new Loader(table)) {
+      long rows = reader.read(loader::add);
+      loader.flush();
+      conn.commit();
+
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf(Locale.ROOT, "%-10s %10d rows %8.2f s %12.0f rows/s%n", table.name, rows,
+                        seconds, rows / seconds);
+    } catch (IOException | SQLException | RuntimeException ex) {
+      conn.rollback();
+      throw ex;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  /**
+   * Collects rows into multi-row INSERTs of one table. A statement's values are held until it is
+   * full, since a prepared statement's row count is fixed; the rows left over at the end go out in
+   * one statement sized to fit them.
+   */
+  private final class Loader implements AutoCloseable {
+    private final Table table;
+    private final int columns;
+    private final int rowsPerInsert;
+    private final PreparedStatement insert;
+    private final Object[] pending;
+    private int pendingRows;
+    private int batched;
+    private long uncommitted;
+
+    Loader(Table table) throws SQLException {
+      this.table = table;
+      this.columns = table.columnTypes.length();
+      this.rowsPerInsert = Math.max(1, Math.min(MAX_ROWS_PER_INSERT, MAX_PARAMETERS / columns));
+      this.insert = conn.prepareStatement(insertSql(table.name, columns, rowsPerInsert));
+      this.pending = new Object[rowsPerInsert * columns];
+    }
+
+    void add(CsvReader.Row row) throws SQLException {
+      int offset = pendingRows * columns;
+      for (int c = 0; c < columns; ++c) {
+        if (row.isNull(c)) {
+          pending[offset + c] = null;
+        } else if (table.columnTypes.charAt(c) == 'i') {
+          pending[offset + c] = row.getInt(c);
+        } else {
+          pending[offset + c] = row.getString(c);
+        }
+      }
+      if (++pendingRows < rowsPerInsert) {
+        return;
+      }
+
+      bind(insert, pendingRows);
+      insert.addBatch();
+      pendingRows = 0;
+      uncommitted += rowsPerInsert;
+      if (++batched == statementsPerBatch) {
+        insert.executeBatch();
+        batched = 0;
+        if (uncommitted >= commitRows) {
+          conn.commit();
+          uncommitted = 0;
+        }
+      }
+    }
+
+    /**
+     * Sends every row added so far. The caller commits.
+     */
+    void flush() throws SQLException {
+      if (batched > 0) {
+        insert.executeBatch();
+        batched = 0;
+      }
+      if (pendingRows > 0) {
+        try (PreparedStatement tail
+               = conn.prepareStatement(insertSql(table.name, columns, pendingRows))) {
+          bind(tail, pendingRows);
+          tail.executeUpdate();
+        }
+        pendingRows = 0;
+      }
+    }
+
+    private void bind(PreparedStatement stmt, int rows) throws SQLException {
+      for (int i = 0; i < rows * columns; ++i) {
+        boolean isInt = table.columnTypes.charAt(i % columns) == 'i';
+        if (pending[i] == null) {
+          stmt.setNull(i + 1, isInt ? Types.INTEGER : Types.VARCHAR);
+        } else if (isInt) {
+          stmt.setInt(i + 1, (Integer) pending[i]);
+        } else {
+          stmt.setString(i + 1, (String) pending[i]);
+        }
+      }
+    }
+
+    @Override
+    public void close() throws SQLException {
+      insert.close();
+    }
+  }
+
+  private static String insertSql(String table, int columns, int rows) {
+    StringBuilder tuple = new StringBuilder("(");
+    for (int c = 0; c < columns; ++c) {
+      tuple.append((c == 0) ? "?" : ", ?");
+    }
+    tuple.append(")");
+
+    StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" VALUES ");
+    for (int r = 0; r < rows; ++r) {
+      sql.append((r == 0) ? "" : ", ").append(tuple);
+    }
+    return sql.toString();
+  }
+
+  void dropIndexes(List<String> indexes) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      for (String sql : indexes) {
+        Matcher m = CREATE_INDEX.matcher(sql);
+        if (m.find()) {
+          stmt.executeUpdate("DROP INDEX IF EXISTS " + m.group(1) + " ON " + m.group(2));
+        }
+      }
+    }
+  }
+
+  void createIndexes(List<String> indexes) throws SQLException {
+    long start = System.nanoTime();
+    try (Statement stmt = conn.createStatement()) {
+      for (String sql : indexes) {
+        stmt.executeUpdate(sql);
+      }
+    }
+    System.out.printf(Locale.ROOT, "%-10s %10d     %8.2f s%n", "indexes", indexes.size(),
+                      (System.nanoTime() - start) / 1e9);
+  }
+
+  /**
+   * @return the non-empty, semicolon-separated statements in {@code file}
+   */
+  private static List<String> readStatements(Path file) throws IOException {
+    List<String> statements = new ArrayList<>();
+    for (String sql : new String(Files.readAllBytes(file), StandardCharsets.UTF_8).split(";")) {
+      if (!sql.trim().isEmpty()) {
+        statements.add(sql.trim());
+      }
+    }
+    return statements;
+  }
+}
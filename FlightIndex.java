@@ -0,0 +1,1233 @@
+package flightapp;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Read-only, in-memory index over the FLIGHTS table used to answer searches without going back
+ * to the database.
+ *
+ * FLIGHTS never changes after import, so the whole table (minus canceled flights) is loaded once
+ * into parallel primitive arrays. Rows are ordered by (day_of_month, origin, dest, actual_time,
+ * fid), which means every (day, origin) pair owns one contiguous range of rows, grouped by
+ * destination and sorted by duration within each destination. That range is the adjacency list
+ * of the origin city for that day. A second, per-destination ordering by price serves searches
+ * ranked by price.
+ *
+ * With -Dflightapp.flights_csv=path the index is built from a flights CSV file in the format
+ * import.sql loads, instead of from the database.
+ *
+ * A built index can be saved as a snapshot file ({@link #writeSnapshot}) holding the sorted
+ * columns, the lookup tables and the dictionaries. {@link #mapSnapshot} memory-maps such a file
+ * and copies the columns straight into their arrays, with nothing to parse or sort, so a service
+ * started with -Dflightapp.flights_snapshot=path can search within milliseconds.
+ */
+final class FlightIndex {
+  private static final String LOAD_FLIGHTS_SQL
+    = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city,"
+    + "       actual_time, capacity, price"
+    + "  FROM Flights"
+    + " WHERE canceled != 1";
+
+  private static final String FLIGHTS_CSV = System.getProperty("flightapp.flights_csv");
+  private static final String FLIGHTS_SNAPSHOT
+    = System.getProperty("flightapp.flights_snapshot");
+
+  // Snapshot layout, all little-endian ints: a header of magic, version, rows, cities and
+  // carriers; the COLUMNS columns; adjacency; fidOrder; priceOrder; then each city and carrier
+  // name as a byte count followed by its UTF-8 bytes
+  private static final int SNAPSHOT_MAGIC = 0x58444946; // "FIDX"
+  private static final int SNAPSHOT_VERSION = 2;
+  private static final int SNAPSHOT_HEADER_INTS = 5;
+  private static final int COLUMNS = 9;
+
+  // Columns of the flights CSV file, in the order of createFlightsTables.sql
+  private static final int CSV_FID = 0;
+  private static final int CSV_DAY_OF_MONTH = 2;
+  private static final int CSV_CARRIER_ID = 4;
+  private static final int CSV_FLIGHT_NUM = 5;
+  private static final int CSV_ORIGIN_CITY = 6;
+  private static final int CSV_DEST_CITY = 8;
+  private static final int CSV_CANCELED = 13;
+  private static final int CSV_ACTUAL_TIME = 14;
+  private static final int CSV_CAPACITY = 16;
+  private static final int CSV_PRICE = 17;
+
+  private static final int MAX_DAY = 31;
+  // Slots a one-stop search's heap starts with before growing towards its limit
+  private static final int INITIAL_HEAP_CAPACITY = 64;
+
+  private static FlightIndex instance;
+
+  // Column storage, one entry per row
+  private final int[] fids;
+  private final int[] days;
+  private final int[] carriers;
+  private final int[] flightNums;
+  private final int[] origins;
+  private final int[] dests;
+  private final int[] times;
+  private final int[] capacities;
+  private final int[] prices;
+
+  // Dictionaries for the string columns
+  private final String[] cityNames;
+  private final String[] carrierNames;
+  private final Map<String, Integer> cityIds;
+
+  // The SymbolTable id of each city and carrier, so flights built from rows share its names
+  private final int[] citySymbols;
+  private final int[] carrierSymbols;
+
+  // adjacency[day * numCities + city] is the first row of that (day, origin) range; the range
+  // ends where the next one starts
+  private final int[] adjacency;
+
+  // fidOrder[i] is the row with the i-th smallest fid, for lookups by fid
+  private final int[] fidOrder;
+
+  // The rows of each (day, origin, dest) run ordered by (price, fid), over the positions of the
+  // run itself: priceOrder[start + i] is the run's i-th cheapest row
+  private final int[] priceOrder;
+
+  private FlightIndex(int[][] columns, String[] cityNames, String[] carrierNames,
+                      int[] adjacency, int[] fidOrder, int[] priceOrder) {
+    this.fids = columns[0];
+    this.days = columns[1];
+    this.carriers = columns[2];
+    this.flightNums = columns[3];
+    this.origins = columns[4];
+    this.dests = columns[5];
+    this.times = columns[6];
+    this.capacities = columns[7];
+    this.prices = columns[8];
+    this.cityNames = cityNames;
+    this.carrierNames = carrierNames;
+    this.adjacency = adjacency;
+    this.fidOrder = fidOrder;
+    this.priceOrder = priceOrder;
+
+    this.cityIds = new HashMap<>();
+    for (int city = 0; city < cityNames.length; ++city) {
+      cityIds.putIfAbsent(cityKey(cityNames[city]), city);
+    }
+    this.citySymbols = internAll(cityNames);
+    this.carrierSymbols = internAll(carrierNames);
+  }
+
+  private static int[] internAll(String[] names) {
+    SymbolTable symbols = SymbolTable.getInstance();
+    int[] ids = new int[names.length];
+    for (int i = 0; i < names.length; ++i) {
+      ids[i] = symbols.intern(names[i]);
+    }
+    return ids;
+  }
+
+  /**
+   * Returns the process-wide index, building it the first time it is requested: from the
+   * snapshot named by -Dflightapp.flights_snapshot or the CSV file named by
+   * -Dflightapp.flights_csv if either is set, otherwise from FLIGHTS through {@code pool}.
+   */
+  static synchronized FlightIndex getInstance(ConnectionPool pool) throws SQLException {
+    if (instance == null) {
+      if (FLIGHTS_SNAPSHOT != null) {
+        try {
+          instance = mapSnapshot(Paths.get(FLIGHTS_SNAPSHOT));
+        } catch (IOException ex) {
+          throw new SQLException("Could not map " + FLIGHTS_SNAPSHOT, ex);
+        }
+      } else if (FLIGHTS_CSV != null) {
+        try {
+          instance = fromCsv(Paths.get(FLIGHTS_CSV));
+        } catch (IOException | NumberFormatException ex) {
+          throw new SQLException("Could not read " + FLIGHTS_CSV, ex);
+        }
+      } else {
+        try (PooledConnection conn = pool.borrow()) {
+          instance = load(conn.connection());
+        }
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * Reads every non-canceled flight and builds a new index.
+   */
+  static FlightIndex load(Connection conn) throws SQLException {
+    Builder builder = new Builder();
+    try (Statement stmt = conn.createStatement();
+         ResultSet results = stmt.executeQuery(LOAD_FLIGHTS_SQL)) {
+      while (results.next()) {
+        builder.add(results.getInt("fid"), results.getInt("day_of_month"),
+                    results.getString("carrier_id"), results.getInt("flight_num"),
+                    results.getString("origin_city"), results.getString("dest_city"),
+                    results.getInt("actual_time"), results.getInt("capacity"),
+                    results.getInt("price"));
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Reads every non-canceled flight from a flights CSV file and builds a new index. As with
+   * {@link #load}, a NULL number reads as 0.
+   */
+  static FlightIndex fromCsv(Path csv) throws IOException {
+    Builder builder = new Builder();
+    try (CsvReader reader = new CsvReader(csv)) {
+      reader.read(row -> {
+        if (intOrZero(row, CSV_CANCELED) == 1) {
+          return;
+        }
+        builder.add(row.getInt(CSV_FID), intOrZero(row, CSV_DAY_OF_MONTH),
+                    row.getString(CSV_CARRIER_ID), intOrZero(row, CSV_FLIGHT_NUM),
+                    row.getString(CSV_ORIGIN_CITY), row.getString(CSV_DEST_CITY),
+                    intOrZero(row, CSV_ACTUAL_TIME), intOrZero(row, CSV_CAPACITY),
+                    intOrZero(row, CSV_PRICE));
+      });
+    }
+    return builder.build();
+  }
+
+  private static int intOrZero(CsvReader.Row row, int field) {
+    return row.isNull(field) ? 0 : row.getInt(field);
+  }
+
+  /**
+   * Saves this index as a snapshot that {@link #mapSnapshot} can read.
+   */
+  void writeSnapshot(Path path) throws IOException {
+    int rows = size();
+    ByteBuffer header = newBuffer(SNAPSHOT_HEADER_INTS * Integer.BYTES);
+    header.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(rows)
+      .putInt(cityNames.length).putInt(carrierNames.length).flip();
+
+    // Written to a temporary file and renamed, so a service starting up never reads a
+    // half-written snapshot
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                                            StandardOpenOption.TRUNCATE_EXISTING,
+                                            StandardOpenOption.WRITE)) {
+      writeFully(out, header);
+      for (int[] column : new int[][] {fids, days, carriers, flightNums, origins, dests, times,
+                                       capacities, prices, adjacency, fidOrder, priceOrder}) {
+        ByteBuffer bytes = newBuffer(column.length * Integer.BYTES);
+        bytes.asIntBuffer().put(column);
+        writeFully(out, bytes);
+      }
+      for (String[] names : new String[][] {cityNames, carrierNames}) {
+        for (String name : names) {
+          byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+          writeFully(out, newBuffer(Integer.BYTES + utf8.length).putInt(utf8.length).put(utf8)
+                            .flip());
+        }
+      }
+      out.force(true);
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads a snapshot written by {@link #writeSnapshot}. The file is mapped and each column is
+   * bulk-copied out of the mapping; only the city and carrier names are decoded.
+   *
+   * @throws IOException if the file is not a snapshot of this version or is truncated
+   */
+  static FlightIndex mapSnapshot(Path path) throws IOException {
+    ByteBuffer file;
+    try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (in.size() > Integer.MAX_VALUE) {
+        throw new IOException(path + " is too large to be a snapshot");
+      }
+      // The mapping stays valid after the channel is closed
+      file = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    try {
+      if (file.getInt() != SNAPSHOT_MAGIC || file.getInt() != SNAPSHOT_VERSION) {
+        throw new IOException(path + " is not a version " + SNAPSHOT_VERSION
+                              + " flight snapshot");
+      }
+      int rows = file.getInt();
+      int numCities = file.getInt();
+      int numCarriers = file.getInt();
+
+      int[][] columns = new int[COLUMNS][];
+      for (int i = 0; i < COLUMNS; ++i) {
+        columns[i] = readInts(file, rows);
+      }
+      int[] adjacency = readInts(file, (MAX_DAY + 1) * numCities + 1);
+      int[] fidOrder = readInts(file, rows);
+      int[] priceOrder = readInts(file, rows);
+      return new FlightIndex(columns, readNames(file, numCities), readNames(file, numCarriers),
+                             adjacency, fidOrder, priceOrder);
+    } catch (BufferUnderflowException | IndexOutOfBoundsException
+             | IllegalArgumentException | NegativeArraySizeException ex) {
+      throw new IOException(path + " is truncated", ex);
+    }
+  }
+
+  private static ByteBuffer newBuffer(int bytes) {
+    return ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Copies the next {@code count} ints of {@code file} into an array, and moves past them.
+   */
+  private static int[] readInts(ByteBuffer file, int count) {
+    if (count > file.remaining() / Integer.BYTES) {
+      throw new BufferUnderflowException();
+    }
+    int[] values = new int[count];
+    file.asIntBuffer().get(values);
+    file.position(file.position() + count * Integer.BYTES);
+    return values;
+  }
+
+  private static String[] readNames(ByteBuffer file, int count) {
+    String[] names = new String[count];
+    for (int i = 0; i < count; ++i) {
+      byte[] utf8 = new byte[file.getInt()];
+      file.get(utf8);
+      names[i] = new String(utf8, StandardCharsets.UTF_8);
+    }
+    return names;
+  }
+
+  /**
+   * Collects flights one at a time and sorts them into an index. Used by {@link #load} and by
+   * anything that has flights from somewhere other than the FLIGHTS table.
+   */
+  static final class Builder {
+    private final IntColumn fid = new IntColumn();
+    private final IntColumn day = new IntColumn();
+    private final IntColumn carrier = new IntColumn();
+    private final IntColumn flightNum = new IntColumn();
+    private final IntColumn origin = new IntColumn();
+    private final IntColumn dest = new IntColumn();
+    private final IntColumn time = new IntColumn();
+    private final IntColumn capacity = new IntColumn();
+    private final IntColumn price = new IntColumn();
+
+    private final List<String> cityNames = new ArrayList<>();
+    private final Map<String, Integer> cityIds = new HashMap<>();
+    private final List<String> carrierNames = new ArrayList<>();
+    private final Map<String, Integer> carrierIds = new HashMap<>();
+
+    /**
+     * Adds one flight. Flights on a day outside 0..31 can never be searched and are dropped.
+     */
+    Builder add(int fid, int dayOfMonth, String carrierId, int flightNum, String originCity,
+                String destCity, int time, int capacity, int price) {
+      if (dayOfMonth < 0 || dayOfMonth > MAX_DAY) {
+        return this;
+      }
+      this.fid.add(fid);
+      this.day.add(dayOfMonth);
+      this.carrier.add(intern(carrierId, carrierNames, carrierIds));
+      this.flightNum.add(flightNum);
+      this.origin.add(internCity(originCity, cityNames, cityIds));
+      this.dest.add(internCity(destCity, cityNames, cityIds));
+      this.time.add(time);
+      this.capacity.add(capacity);
+      this.price.add(price);
+      return this;
+    }
+
+    FlightIndex build() {
+      int n = fid.size;
+      int[] order = sortedOrder(n, day.values, origin.values, dest.values, time.values,
+                                fid.values);
+      int[] fids = fid.permute(order);
+      int[] days = day.permute(order);
+      int[] origins = origin.permute(order);
+      int[] dests = dest.permute(order);
+      int[] prices = price.permute(order);
+      int[][] columns = {
+        fids, days, carrier.permute(order), flightNum.permute(order), origins, dests,
+        time.permute(order), capacity.permute(order), prices,
+      };
+      return new FlightIndex(columns, cityNames.toArray(new String[0]),
+                             carrierNames.toArray(new String[0]),
+                             buildAdjacency(days, origins, cityNames.size()), orderByFid(fids),
+                             orderByPrice(days, origins, dests, prices, fids));
+    }
+  }
+
+  int size() { return fids.length; }
+
+  int fid(int row) { return fids[row]; }
+  int dayOfMonth(int row) { return days[row]; }
+  String carrierId(int row) { return carrierNames[carriers[row]]; }
+  int flightNum(int row) { return flightNums[row]; }
+  String originCity(int row) { return cityNames[origins[row]]; }
+  String destCity(int row) { return cityNames[dests[row]]; }
+  int time(int row) { return times[row]; }
+  int capacity(int row) { return capacities[row]; }
+  int price(int row) { return prices[row]; }
+
+  /**
+   * @return the row of the flight with the given fid, or -1 if it is not indexed
+   */
+  int rowOf(int fid) {
+    int lo = 0;
+    int hi = fidOrder.length - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int midFid = fids[fidOrder[mid]];
+      if (midFid < fid) {
+        lo = mid + 1;
+      } else if (midFid > fid) {
+        hi = mid - 1;
+      } else {
+        return fidOrder[mid];
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the flight in {@code row} as a {@link Flight}
+   */
+  Flight flight(int row) {
+    return new Flight(fids[row], days[row], carrierSymbols[carriers[row]], flightNums[row],
+                      citySymbols[origins[row]], citySymbols[dests[row]], times[row],
+                      capacities[row], prices[row]);
+  }
+
+  /**
+   * Finds the {@code limit} shortest itineraries with at most {@code maxStops} stops, in the
+   * order a search returns them.
+   */
+  List<Itinerary> search(String originCity, String destCity, int maxStops, int dayOfMonth,
+                         int limit) {
+    return search(originCity, destCity, maxStops, Itinerary.Ranking.DURATION, dayOfMonth, limit);
+  }
+
+  /**
+   * Finds the {@code limit} best itineraries with at most {@code maxStops} stops under
+   * {@code ranking}, in {@link Itinerary.Ranking#order}.
+   */
+  List<Itinerary> search(String originCity, String destCity, int maxStops,
+                         Itinerary.Ranking ranking, int dayOfMonth, int limit) {
+    if (maxStops > 1 || ranking == Itinerary.Ranking.PARETO) {
+      List<int[]> paths = searchBestFirst(originCity, destCity, dayOfMonth,
+                                          Math.max(maxStops, 0) + 1, ranking, limit);
+      List<Itinerary> itineraries = new ArrayList<>(paths.size());
+      for (int[] path : paths) {
+        Flight[] legs = new Flight[path.length];
+        for (int i = 0; i < path.length; ++i) {
+          legs[i] = flight(path[i]);
+        }
+        itineraries.add(new Itinerary(legs));
+      }
+      return itineraries;
+    }
+
+    boolean byPrice = ranking == Itinerary.Ranking.PRICE;
+    int[] rows = searchDirect(originCity, destCity, dayOfMonth, limit, byPrice);
+    int[] pairs = (maxStops < 1) ? new int[0]
+      : searchOneStop(originCity, destCity, dayOfMonth, limit, byPrice);
+
+    // Both lists are already sorted, so merge them until there are enough
+    Comparator<Itinerary> order = ranking.order();
+    List<Itinerary> itineraries = new ArrayList<>(Math.min(limit, rows.length + pairs.length / 2));
+    int nextRow = 0;
+    int nextPair = 0;
+    Itinerary direct = (rows.length > 0) ? new Itinerary(flight(rows[0])) : null;
+    Itinerary oneStop = (pairs.length > 0)
+      ? new Itinerary(flight(pairs[0]), flight(pairs[1])) : null;
+    while (itineraries.size() < limit && (direct != null || oneStop != null)) {
+      if (oneStop == null || (direct != null && order.compare(direct, oneStop) <= 0)) {
+        itineraries.add(direct);
+        ++nextRow;
+        direct = (nextRow < rows.length) ? new Itinerary(flight(rows[nextRow])) : null;
+      } else {
+        itineraries.add(oneStop);
+        nextPair += 2;
+        oneStop = (nextPair < pairs.length)
+          ? new Itinerary(flight(pairs[nextPair]), flight(pairs[nextPair + 1])) : null;
+      }
+    }
+    return itineraries;
+  }
+
+  /**
+   * Runs {@link #search} for every day from {@code firstDay} to {@code lastDay}. The index is
+   * read-only, so the days are searched in parallel on the common fork-join pool.
+   *
+   * @return one result list per day, in day order
+   */
+  List<List<Itinerary>> searchDays(String originCity, String destCity, int maxStops, int firstDay,
+                                   int lastDay, int limit) {
+    return IntStream.rangeClosed(firstDay, lastDay)
+      .parallel()
+      .mapToObj(day -> search(originCity, destCity, maxStops, day, limit))
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * Finds up to {@code limit} direct flights, ordered by duration and then fid.
+   *
+   * @return the rows of the matching flights
+   */
+  int[] searchDirect(String originCity, String destCity, int dayOfMonth, int limit) {
+    return searchDirect(originCity, destCity, dayOfMonth, limit, false);
+  }
+
+  /**
+   * As {@link #searchDirect(String, String, int, int)}, or ordered by price and then fid if
+   * {@code byPrice}.
+   */
+  int[] searchDirect(String originCity, String destCity, int dayOfMonth, int limit,
+                     boolean byPrice) {
+    Integer origin = cityIds.get(cityKey(originCity));
+    Integer dest = cityIds.get(cityKey(destCity));
+    if (origin == null || dest == null || dayOfMonth < 0 || dayOfMonth > MAX_DAY || limit <= 0) {
+      return new int[0];
+    }
+
+    int from = destStart(dayOfMonth, origin, dest);
+    int to = destEnd(dayOfMonth, origin, dest, from);
+    int[] rows = new int[Math.min(limit, to - from)];
+    for (int i = 0; i < rows.length; ++i) {
+      rows[i] = byPrice ? priceOrder[from + i] : from + i;
+    }
+    return rows;
+  }
+
+  /**
+   * Finds up to {@code limit} one-stop itineraries, ordered by total duration and then by the
+   * fids of the first and second flight.
+   *
+   * @return pairs of rows, {@code [first0, second0, first1, second1, ...]}
+   */
+  int[] searchOneStop(String originCity, String destCity, int dayOfMonth, int limit) {
+    return searchOneStop(originCity, destCity, dayOfMonth, limit, false);
+  }
+
+  /**
+   * As {@link #searchOneStop(String, String, int, int)}, or ordered by total price and then the
+   * fids if {@code byPrice}.
+   */
+  int[] searchOneStop(String originCity, String destCity, int dayOfMonth, int limit,
+                      boolean byPrice) {
+    Integer origin = cityIds.get(cityKey(originCity));
+    Integer dest = cityIds.get(cityKey(destCity));
+    if (origin == null || dest == null || dayOfMonth < 0 || dayOfMonth > MAX_DAY || limit <= 0) {
+      return new int[0];
+    }
+
+    int[] costs = byPrice ? prices : times;
+    int[] order = byPrice ? priceOrder : null;
+    BoundedHeap best = new BoundedHeap(limit);
+    int start = rangeStart(dayOfMonth, origin);
+    int end = rangeEnd(dayOfMonth, origin);
+
+    // The (day, origin) range is grouped by intermediate city, so each group of first legs joins
+    // against a single list of second legs. Both are walked in cost order, so the join stops as
+    // soon as the heap is full of cheaper pairs.
+    int groupStart = start;
+    while (groupStart < end) {
+      int stop = dests[groupStart];
+      int groupEnd = groupStart;
+      while (groupEnd < end && dests[groupEnd] == stop) {
+        ++groupEnd;
+      }
+
+      int secondStart = destStart(dayOfMonth, stop, dest);
+      int secondEnd = destEnd(dayOfMonth, stop, dest, secondStart);
+      if (secondStart < secondEnd) {
+        int bestSecond = costs[at(order, secondStart)];
+        for (int firstPos = groupStart; firstPos < groupEnd; ++firstPos) {
+          int first = at(order, firstPos);
+          if (best.isFull() && costs[first] + bestSecond > best.worstTotal()) {
+            break;
+          }
+          for (int secondPos = secondStart; secondPos < secondEnd; ++secondPos) {
+            int second = at(order, secondPos);
+            int total = costs[first] + costs[second];
+            if (best.isFull() && total > best.worstTotal()) {
+              break;
+            }
+            best.offer(total, first, second);
+          }
+        }
+      }
+      groupStart = groupEnd;
+    }
+    return best.drainSorted();
+  }
+
+  /**
+   * Finds up to {@code limit} itineraries of 1 to {@code maxLegs} flights, ranked by
+   * {@code ranking}, with a best-first search over the day's flights.
+   *
+   * Partial itineraries are expanded best first: by total duration, or by total price for
+   * {@link Itinerary.Ranking#PRICE}. Neither is ever negative, so itineraries reach the
+   * destination in final order and the search stops at the {@code limit}-th. Two bounds keep it
+   * from enumerating every path:
+   * <ul>
+   *   <li>from each city only the best flight to each next city is queued; the next one to the
+   *       same city is queued when that one is taken, since the rows of a (day, origin, dest) run
+   *       are sorted by duration, and {@code priceOrder} lists them by price;
+   *   <li>a partial itinerary is dropped once {@code limit} partial itineraries that can be
+   *       extended in every way it can have been expanded (see {@link Expanded}), because each
+   *       of its continuations ranks behind that many others.
+   * </ul>
+   * For {@link Itinerary.Ranking#PARETO} the search runs by duration and keeps each itinerary
+   * that is cheaper than every one found before it. Of itineraries with the same duration only
+   * the cheapest, and of those the first by fids, is kept, as in PARETO_SQL: one that is cheaper
+   * than the last one kept and as long replaces it. The second bound becomes a price: a partial
+   * itinerary that is no cheaper than one expanded before it that can be extended in every way
+   * it can is beaten by it on both counts, and so are all of its continuations. The search ends
+   * early once it finds an itinerary as cheap as the cheapest one, since nothing after it can
+   * be cheaper.
+   *
+   * @return the rows of each itinerary's flights, best first
+   */
+  List<int[]> searchBestFirst(String originCity, String destCity, int dayOfMonth, int maxLegs,
+                              Itinerary.Ranking ranking, int limit) {
+    Integer origin = cityIds.get(cityKey(originCity));
+    Integer dest = cityIds.get(cityKey(destCity));
+    if (origin == null || dest == null || dayOfMonth < 0 || dayOfMonth > MAX_DAY || limit <= 0
+        || maxLegs < 1) {
+      return new ArrayList<>();
+    }
+    return searchBestFirst(origin, dest, dayOfMonth, maxLegs, ranking, limit);
+  }
+
+  private List<int[]> searchBestFirst(int origin, int dest, int day, int maxLegs,
+                                      Itinerary.Ranking ranking, int limit) {
+    boolean pareto = ranking == Itinerary.Ranking.PARETO;
+    int[] costs = (ranking == Itinerary.Ranking.PRICE) ? prices : times;
+    int[] order = (ranking == Itinerary.Ranking.PRICE) ? priceOrder : null;
+    List<int[]> found = new ArrayList<>();
+
+    int floor = 0;
+    if (pareto) {
+      List<int[]> cheapest = searchBestFirst(origin, dest, day, maxLegs,
+                                             Itinerary.Ranking.PRICE, 1);
+      if (cheapest.isEmpty()) {
+        return found;
+      }
+      for (int row : cheapest.get(0)) {
+        floor += prices[row];
+      }
+    }
+
+    Expanded seen = new Expanded(maxLegs, pareto);
+    int bestPrice = Integer.MAX_VALUE;
+    // Duration of the last itinerary on the Pareto front so far
+    int lastTotal = -1;
+    PriorityQueue<Partial> frontier = new PriorityQueue<>();
+    queueNextLegs(frontier, null, origin, origin, dest, day, maxLegs, costs, order,
+                  pareto ? null : seen, limit);
+
+    while (!frontier.isEmpty()
+           && (found.size() < limit || (pareto && frontier.peek().total == lastTotal))) {
+      Partial path = frontier.poll();
+      int legs = path.rows.length;
+      int city = dests[path.rows[legs - 1]];
+      if (!pareto && city != dest && seen.countAhead(path.rows, legs - 1, city) >= limit) {
+        continue;
+      }
+
+      // The next flight of the same run ranks no better, so it can wait until now
+      int from = (legs == 1) ? origin : dests[path.rows[legs - 2]];
+      int next = path.lastPos + 1;
+      if (next < rangeEnd(day, from) && dests[next] == city) {
+        frontier.add(path.replaceLast(next, at(order, next), costs));
+      }
+
+      if (pareto) {
+        if (path.price >= bestPrice
+            || (city != dest && seen.dominates(path.rows, legs - 1, city, path.price))) {
+          continue;
+        }
+        if (city == dest) {
+          if (path.total == lastTotal) {
+            found.remove(found.size() - 1);
+          }
+          found.add(path.rows);
+          bestPrice = path.price;
+          lastTotal = path.total;
+          if (bestPrice <= floor) {
+            break;
+          }
+        } else {
+          seen.add(path.rows, legs - 1, city, path.price);
+          queueNextLegs(frontier, path, city, origin, dest, day, maxLegs, costs, order, null,
+                        limit);
+        }
+      } else if (city == dest) {
+        found.add(path.rows);
+      } else {
+        seen.add(path.rows, legs - 1, city, path.price);
+        queueNextLegs(frontier, path, city, origin, dest, day, maxLegs, costs, order, seen,
+                      limit);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Queues {@code path} extended by the best flight from {@code city} to each city it has not
+   * visited yet, or only to {@code dest} if there is room for just one more flight. A city is
+   * skipped if {@code expanded} already holds {@code limit} partial itineraries ahead of the
+   * extended one there, unless {@code expanded} is null.
+   */
+  private void queueNextLegs(PriorityQueue<Partial> frontier, Partial path, int city, int origin,
+                             int dest, int day, int maxLegs, int[] costs, int[] order,
+                             Expanded expanded, int limit) {
+    int legs = (path == null) ? 1 : path.rows.length + 1;
+    if (legs == maxLegs) {
+      int first = destStart(day, city, dest);
+      if (first < destEnd(day, city, dest, first)) {
+        frontier.add(new Partial(path, first, at(order, first), costs));
+      }
+      return;
+    }
+
+    int end = rangeEnd(day, city);
+    int pos = rangeStart(day, city);
+    while (pos < end) {
+      int next = dests[pos];
+      boolean full = expanded != null && next != dest
+        && expanded.countAhead((path == null) ? null : path.rows, legs - 1, next) >= limit;
+      if (!full && next != origin && (path == null || !path.visits(next))) {
+        frontier.add(new Partial(path, pos, at(order, pos), costs));
+      }
+      while (pos < end && dests[pos] == next) {
+        ++pos;
+      }
+    }
+  }
+
+  // The row at a position of its run in the given order; null is the rows' own (duration) order
+  private static int at(int[] order, int pos) {
+    return (order == null) ? pos : order[pos];
+  }
+
+  /**
+   * What the best-first search has expanded so far, to bound what it has not: the number of
+   * partial itineraries expanded, or for PARETO the lowest price among them, per city and set
+   * of cities stopped at on the way.
+   *
+   * Itineraries never visit a city twice, so a partial itinerary that reached the same city in
+   * no more flights, after stopping at a subset of the same cities, can be extended in every way
+   * this one can. If it was expanded first it ranks ahead on every such extension. A partial
+   * itinerary with only the last flight to go can go nowhere but the destination, so there
+   * every one expanded at the city counts, wherever it stopped.
+   *
+   * A partial itinerary that can still be extended has stopped at most MAX_LEGS - 2 times, so
+   * the city and stops pack into a long, 21 bits each, as keys of an open-addressing table
+   * that needs no boxing.
+   */
+  private final class Expanded {
+    private static final long EMPTY = -1;
+
+    private final int maxLegs;
+    private final boolean pareto;
+    // Over every set of stops at each city
+    private final int[] atCity;
+    private long[] keys = new long[64];
+    private int[] values = new int[64];
+    private int size;
+
+    Expanded(int maxLegs, boolean pareto) {
+      this.maxLegs = maxLegs;
+      this.pareto = pareto;
+      this.atCity = new int[cityNames.length];
+      Arrays.fill(keys, EMPTY);
+      if (pareto) {
+        Arrays.fill(atCity, Integer.MAX_VALUE);
+      }
+    }
+
+    /**
+     * Records the expansion of a partial itinerary at {@code city} that stopped where the first
+     * {@code stops} of {@code rows} arrive.
+     */
+    void add(int[] rows, int stops, int city, int price) {
+      long key = key(city, (stops > 0) ? dests[rows[0]] : -1, (stops > 1) ? dests[rows[1]] : -1);
+      int slot = slot(keys, key);
+      if (keys[slot] == EMPTY) {
+        if (2 * (size + 1) > keys.length) {
+          grow();
+          slot = slot(keys, key);
+        }
+        keys[slot] = key;
+        values[slot] = pareto ? Integer.MAX_VALUE : 0;
+        ++size;
+      }
+      if (pareto) {
+        values[slot] = Math.min(values[slot], price);
+        atCity[city] = Math.min(atCity[city], price);
+      } else {
+        ++values[slot];
+        ++atCity[city];
+      }
+    }
+
+    /**
+     * @return how many partial itineraries expanded so far can be extended in every way a
+     *         partial itinerary at {@code city} after the first {@code stops} of {@code rows}
+     *         can
+     */
+    int countAhead(int[] rows, int stops, int city) {
+      if (stops == maxLegs - 2) {
+        return atCity[city];
+      }
+      int count = 0;
+      for (int subset = 0; subset < 1 << stops; ++subset) {
+        count += get(subsetKey(rows, stops, city, subset), 0);
+      }
+      return count;
+    }
+
+    /**
+     * @return whether a partial itinerary expanded so far that can be extended in every way a
+     *         partial itinerary at {@code city} after the first {@code stops} of {@code rows}
+     *         can cost no more than {@code price}
+     */
+    boolean dominates(int[] rows, int stops, int city, int price) {
+      if (stops == maxLegs - 2) {
+        return atCity[city] <= price;
+      }
+      for (int subset = 0; subset < 1 << stops; ++subset) {
+        if (get(subsetKey(rows, stops, city, subset), Integer.MAX_VALUE) <= price) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    // The key for city after stopping only where the rows picked by the bits of subset arrive
+    private long subsetKey(int[] rows, int stops, int city, int subset) {
+      int first = -1;
+      int second = -1;
+      for (int i = 0; i < stops; ++i) {
+        if ((subset & 1 << i) != 0) {
+          if (first < 0) {
+            first = dests[rows[i]];
+          } else {
+            second = dests[rows[i]];
+          }
+        }
+      }
+      return key(city, first, second);
+    }
+
+    // -1 marks no stop; the order of the stops does not matter
+    private long key(int city, int firstStop, int secondStop) {
+      long low = Math.min(firstStop, secondStop) + 1;
+      long high = Math.max(firstStop, secondStop) + 1;
+      return city | low << 21 | high << 42;
+    }
+
+    private int get(long key, int missing) {
+      int slot = slot(keys, key);
+      return (keys[slot] == EMPTY) ? missing : values[slot];
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new long[oldKeys.length * 2];
+      values = new int[oldKeys.length * 2];
+      Arrays.fill(keys, EMPTY);
+      for (int i = 0; i < oldKeys.length; ++i) {
+        if (oldKeys[i] != EMPTY) {
+          int slot = slot(keys, oldKeys[i]);
+          keys[slot] = oldKeys[i];
+          values[slot] = oldValues[i];
+        }
+      }
+    }
+
+    // The slot holding key, or the empty slot where it belongs; linear probing
+    private int slot(long[] keys, long key) {
+      int mask = keys.length - 1;
+      int slot = (int) (key * 0x9E3779B97F4A7C15L >>> 32) & mask;
+      while (keys[slot] != EMPTY && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+  }
+
+  /**
+   * An itinerary under construction in the best-first search, as the rows of its flights.
+   */
+  private final class Partial implements Comparable<Partial> {
+    final int[] rows;
+    // Position of the last flight within its run, in the order the search walks runs in
+    final int lastPos;
+    // What the search ranks by: total duration or total price
+    final int total;
+    final int price;
+
+    Partial(Partial previous, int pos, int row, int[] costs) {
+      lastPos = pos;
+      if (previous == null) {
+        rows = new int[] {row};
+        total = costs[row];
+        price = prices[row];
+      } else {
+        rows = Arrays.copyOf(previous.rows, previous.rows.length + 1);
+        rows[rows.length - 1] = row;
+        total = previous.total + costs[row];
+        price = previous.price + prices[row];
+      }
+    }
+
+    private Partial(int[] rows, int lastPos, int total, int price) {
+      this.rows = rows;
+      this.lastPos = lastPos;
+      this.total = total;
+      this.price = price;
+    }
+
+    /**
+     * @return this path with its last flight replaced by {@code row}, at {@code pos} of the run
+     */
+    Partial replaceLast(int pos, int row, int[] costs) {
+      int[] replaced = rows.clone();
+      int last = replaced[replaced.length - 1];
+      replaced[replaced.length - 1] = row;
+      return new Partial(replaced, pos, total - costs[last] + costs[row],
+                         price - prices[last] + prices[row]);
+    }
+
+    boolean visits(int city) {
+      for (int row : rows) {
+        if (dests[row] == city) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public int compareTo(Partial other) {
+      if (total != other.total) {
+        return Integer.compare(total, other.total);
+      }
+      int common = Math.min(rows.length, other.rows.length);
+      for (int i = 0; i < common; ++i) {
+        if (fids[rows[i]] != fids[other.rows[i]]) {
+          return Integer.compare(fids[rows[i]], fids[other.rows[i]]);
+        }
+      }
+      return Integer.compare(rows.length, other.rows.length);
+    }
+  }
+
+  private int rangeStart(int day, int city) {
+    return adjacency[day * cityNames.length + city];
+  }
+
+  private int rangeEnd(int day, int city) {
+    return adjacency[day * cityNames.length + city + 1];
+  }
+
+  /**
+   * Returns the first row of the (day, origin, dest) run, or the end of the (day, origin) range
+   * if there is none.
+   */
+  private int destStart(int day, int origin, int dest) {
+    int lo = rangeStart(day, origin);
+    int hi = rangeEnd(day, origin);
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (dests[mid] < dest) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private int destEnd(int day, int origin, int dest, int from) {
+    int end = rangeEnd(day, origin);
+    int to = from;
+    while (to < end && dests[to] == dest) {
+      ++to;
+    }
+    return to;
+  }
+
+  private static int[] buildAdjacency(int[] days, int[] origins, int numCities) {
+    int[] starts = new int[(MAX_DAY + 1) * numCities + 1];
+    int row = 0;
+    for (int slot = 0; slot < starts.length - 1; ++slot) {
+      starts[slot] = row;
+      while (row < days.length && days[row] * numCities + origins[row] == slot) {
+        ++row;
+      }
+    }
+    starts[starts.length - 1] = row;
+    return starts;
+  }
+
+  /**
+   * Returns the row numbers ordered by (day, origin, dest, time, fid).
+   */
+  private static int[] sortedOrder(int n, int[] day, int[] origin, int[] dest, int[] time,
+                                   int[] fid) {
+    Integer[] boxed = new Integer[n];
+    for (int i = 0; i < n; ++i) {
+      boxed[i] = i;
+    }
+    Arrays.sort(boxed, (a, b) -> {
+      if (day[a] != day[b]) return Integer.compare(day[a], day[b]);
+      if (origin[a] != origin[b]) return Integer.compare(origin[a], origin[b]);
+      if (dest[a] != dest[b]) return Integer.compare(dest[a], dest[b]);
+      if (time[a] != time[b]) return Integer.compare(time[a], time[b]);
+      return Integer.compare(fid[a], fid[b]);
+    });
+    int[] order = new int[n];
+    for (int i = 0; i < n; ++i) {
+      order[i] = boxed[i];
+    }
+    return order;
+  }
+
+  /**
+   * Returns the rows, already sorted by (day, origin, dest), reordered by price and then fid
+   * within each (day, origin, dest) run.
+   */
+  private static int[] orderByPrice(int[] day, int[] origin, int[] dest, int[] price,
+                                    int[] fid) {
+    Integer[] boxed = new Integer[day.length];
+    for (int i = 0; i < boxed.length; ++i) {
+      boxed[i] = i;
+    }
+    Arrays.sort(boxed, (a, b) -> {
+      if (day[a] != day[b]) return Integer.compare(day[a], day[b]);
+      if (origin[a] != origin[b]) return Integer.compare(origin[a], origin[b]);
+      if (dest[a] != dest[b]) return Integer.compare(dest[a], dest[b]);
+      if (price[a] != price[b]) return Integer.compare(price[a], price[b]);
+      return Integer.compare(fid[a], fid[b]);
+    });
+    int[] order = new int[boxed.length];
+    for (int i = 0; i < order.length; ++i) {
+      order[i] = boxed[i];
+    }
+    return order;
+  }
+
+  private static int[] orderByFid(int[] fid) {
+    long[] keyed = new long[fid.length];
+    for (int row = 0; row < fid.length; ++row) {
+      keyed[row] = ((long) fid[row] << 32) | row;
+    }
+    Arrays.sort(keyed);
+    int[] order = new int[fid.length];
+    for (int i = 0; i < order.length; ++i) {
+      order[i] = (int) keyed[i];
+    }
+    return order;
+  }
+
+  private static int internCity(String name, List<String> names, Map<String, Integer> ids) {
+    String key = cityKey(name);
+    Integer id = ids.get(key);
+    if (id == null) {
+      id = names.size();
+      names.add(name);
+      ids.put(key, id);
+    }
+    return id;
+  }
+
+  /**
+   * City lookups follow the database's default collation, which ignores case and trailing
+   * spaces.
+   */
+  private static String cityKey(String name) {
+    if (name == null) {
+      return "";
+    }
+    int end = name.length();
+    while (end > 0 && name.charAt(end - 1) == ' ') {
+      --end;
+    }
+    return name.substring(0, end).toLowerCase(Locale.ROOT);
+  }
+
+  private static int intern(String value, List<String> names, Map<String, Integer> ids) {
+    Integer id = ids.get(value);
+    if (id == null) {
+      id = names.size();
+      names.add(value);
+      ids.put(value, id);
+    }
+    return id;
+  }
+
+  /**
+   * Growable int array used while reading the table.
+   */
+  private static final class IntColumn {
+    int[] values = new int[1024];
+    int size;
+
+    void add(int v) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = v;
+    }
+
+    int[] permute(int[] order) {
+      int[] out = new int[order.length];
+      for (int i = 0; i < order.length; ++i) {
+        out[i] = values[order[i]];
+      }
+      return out;
+    }
+  }
+
+  /**
+   * Max-heap of the best {@code capacity} (total, first, second) candidates seen so far. The
+   * root is the worst candidate kept, so a better one can replace it in O(log k).
+   *
+   * The capacity comes straight from the user's num_itineraries, so the arrays start small and
+   * grow with the candidates actually offered.
+   */
+  private final class BoundedHeap {
+    private final int capacity;
+    private int[] totals;
+    private int[] firsts;
+    private int[] seconds;
+    private int size;
+
+    BoundedHeap(int capacity) {
+      this.capacity = capacity;
+      int initial = Math.min(capacity, INITIAL_HEAP_CAPACITY);
+      totals = new int[initial];
+      firsts = new int[initial];
+      seconds = new int[initial];
+    }
+
+    boolean isFull() { return size == capacity; }
+
+    int worstTotal() { return totals[0]; }
+
+    void offer(int total, int first, int second) {
+      if (size < capacity) {
+        if (size == totals.length) {
+          int grown = (int) Math.min(capacity, 2L * totals.length);
+          totals = Arrays.copyOf(totals, grown);
+          firsts = Arrays.copyOf(firsts, grown);
+          seconds = Arrays.copyOf(seconds, grown);
+        }
+        set(size, total, first, second);
+        siftUp(size++);
+      } else if (compare(total, first, second, 0) < 0) {
+        set(0, total, first, second);
+        siftDown(0);
+      }
+    }
+
+    /**
+     * Empties the heap, returning its candidates best-first as row pairs.
+     */
+    int[] drainSorted() {
+      int[] pairs = new int[size * 2];
+      while (size > 0) {
+        int last = --size;
+        pairs[last * 2] = firsts[0];
+        pairs[last * 2 + 1] = seconds[0];
+        set(0, totals[last], firsts[last], seconds[last]);
+        siftDown(0);
+      }
+      return pairs;
+    }
+
+    // Orders candidates the way TWO_HOP_SQL and TWO_HOP_BY_PRICE_SQL do: total time or price,
+    // then first fid, then second fid
+    private int compare(int total, int first, int second, int slot) {
+      if (total != totals[slot]) return Integer.compare(total, totals[slot]);
+      if (fids[first] != fids[firsts[slot]]) {
+        return Integer.compare(fids[first], fids[firsts[slot]]);
+      }
+      return Integer.compare(fids[second], fids[seconds[slot]]);
+    }
+
+    private void set(int slot, int total, int first, int second) {
+      totals[slot] = total;
+      firsts[slot] = first;
+      seconds[slot] = second;
+    }
+
+    private void swap(int a, int b) {
+      int total = totals[a];
+      int first = firsts[a];
+      int second = seconds[a];
+      set(a, totals[b], firsts[b], seconds[b]);
+      set(b, total, first, second);
+    }
+
+    private void siftUp(int slot) {
+      while (slot > 0) {
+        int parent = (slot - 1) / 2;
+        if (compare(totals[slot], firsts[slot], seconds[slot], parent) <= 0) {
+          return;
+        }
+        swap(slot, parent);
+        slot = parent;
+      }
+    }
+
+    private void siftDown(int slot) {
+      while (true) {
+        int largest = slot;
+        for (int child = 2 * slot + 1; child <= 2 * slot + 2 && child < size; ++child) {
+          if (compare(totals[child], firsts[child], seconds[child], largest) > 0) {
+            largest = child;
+          }
+        }
+        if (largest == slot) {
+          return;
+        }
+        swap(slot, largest);
+        slot = largest;
+      }
+    }
+  }
+}
@@ -0,0 +1,389 @@
+package flightapp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves the CLI commands over TCP, to many clients at once.
+ *
+ * Both ways the protocol is a stream of frames, each a 4-byte big-endian length followed by that
+ * many bytes of UTF-8. A client sends one command per frame, in the CLI syntax from the README,
+ * and gets back one frame per command holding exactly the text the CLI would print, in the order
+ * the commands were sent. Commands can be pipelined: a client need not wait for a response before
+ * sending the next command. Up to -Dflightapp.max_pipeline commands per connection are queued,
+ * after which the server stops reading from that connection until some have completed. After
+ * {@code quit} the server sends the outstanding responses and closes the connection. It does the
+ * same when the client closes its side, once every whole command it sent has run.
+ *
+ * Every connection is a {@link Session} of a {@link SessionManager}, so a connection's commands
+ * run one at a time and in order on its session thread, while connections run in parallel. A
+ * command's response is encoded by the connection's {@link ResponseEncoder} on the session thread,
+ * so responses, including the one for a command that threw, are queued in the order the commands
+ * were sent. One selector thread accepts connections, reads commands and does every write to the
+ * sockets: session threads hand each completed command back to it through a queue.
+ *
+ * Usage:
+ * <pre>
+ *   java -cp out:mssql-jdbc.jar flightapp.FlightServer --db dbconn.properties [--port 9090]
+ *        [--pool 16]
+ * </pre>
+ * -Dflightapp.storage selects the store as it does for the CLI.
+ */
+final class FlightServer implements AutoCloseable {
+  // The longest command the server accepts; a longer frame closes the connection
+  static final int MAX_COMMAND_BYTES = 64 * 1024;
+
+  private static final int MAX_PIPELINE = Integer.getInteger("flightapp.max_pipeline", 32);
+  private static final int READ_BUFFER_BYTES = 4 * 1024;
+  private static final int WRITE_BUFFER_BYTES = 16 * 1024;
+
+  private final SessionManager sessions;
+  private final CommandDispatcher dispatcher;
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
+  private final int port;
+  private final Thread selectorThread;
+  // Commands that have run, in the order they finished, for the selector thread to send
+  private final Queue<Completion> completions = new ConcurrentLinkedQueue<>();
+  private volatile boolean closed;
+
+  /**
+   * Starts serving on {@code address}; port 0 picks a free port.
+   */
+  FlightServer(FlightTransactions transactions, InetSocketAddress address) throws IOException {
+    this.sessions = new SessionManager(transactions);
+    this.dispatcher = new CommandDispatcher(transactions);
+    this.selector = Selector.open();
+    this.serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(address);
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    this.port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    this.selectorThread = new Thread(this::run, "flightapp-server");
+    selectorThread.start();
+  }
+
+  /**
+   * @return the port the server listens on
+   */
+  int port() {
+    return port;
+  }
+
+  /**
+   * @return the number of open connections
+   */
+  int connectionCount() {
+    return sessions.activeSessions();
+  }
+
+  /**
+   * Stops accepting and reading, and closes every connection.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    selector.wakeup();
+    try {
+      selectorThread.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    for (SelectionKey key : selector.keys()) {
+      if (key.attachment() instanceof Connection) {
+        ((Connection) key.attachment()).close();
+      }
+    }
+    serverChannel.close();
+    selector.close();
+    sessions.close();
+  }
+
+  private void run() {
+    try {
+      while (!closed) {
+        selector.select();
+        for (Completion done; (done = completions.poll()) != null; ) {
+          done.conn.completed(done.failure);
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          Connection conn = (Connection) key.attachment();
+          if (key.isWritable()) {
+            conn.flush();
+          }
+          if (key.isValid() && key.isReadable()) {
+            conn.read();
+          }
+        }
+      }
+    } catch (IOException | ClosedSelectorException ex) {
+      if (!closed) {
+        ex.printStackTrace();
+      }
+    }
+  }
+
+  private void accept() {
+    SocketChannel channel = null;
+    try {
+      channel = serverChannel.accept();
+      if (channel == null) {
+        return;
+      }
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      Connection conn = new Connection(channel);
+      conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+    } catch (IOException ex) {
+      // Out of file descriptors, say: drop this connection but keep serving the others
+      ex.printStackTrace();
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException closeEx) {
+          ex.addSuppressed(closeEx);
+        }
+      }
+    }
+  }
+
+  private final class Connection {
+    private final SocketChannel channel;
+    private final Session session = sessions.open();
+    private final ResponseEncoder out = new ResponseEncoder(WRITE_BUFFER_BYTES);
+    private SelectionKey key;
+
+    // Only used on the selector thread. in is kept in write mode: the bytes read but not yet
+    // parsed run from 0 to its position.
+    private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    // Whether parsing stopped with whole commands left in, because the pipeline was full
+    private boolean blocked;
+    // The client has closed its side; the whole commands already in still run
+    private boolean endOfStream;
+    // No more commands will be submitted, after quit or once the end of the stream is parsed
+    private boolean draining;
+    // Commands submitted whose completion has not been handled yet
+    private int inFlight;
+    private boolean disconnected;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void read() {
+      // Full only of whole commands waiting for the pipeline, as parse grows it for a long one
+      if (!in.hasRemaining()) {
+        return;
+      }
+      int count;
+      try {
+        count = channel.read(in);
+      } catch (IOException ex) {
+        close();
+        return;
+      }
+      if (count == 0) {
+        return;
+      }
+      endOfStream = count < 0;
+      parse();
+      update();
+    }
+
+    // Submits every whole command that has arrived, as far as the pipeline allows. Once the
+    // stream has ended and none is left, the connection drains; a partial frame is dropped.
+    private void parse() {
+      blocked = false;
+      in.flip();
+      while (!draining && in.remaining() >= 4) {
+        int length = in.getInt(in.position());
+        if (length < 0 || length > MAX_COMMAND_BYTES) {
+          close();
+          return;
+        }
+        if (in.remaining() < 4 + length) {
+          if (in.capacity() < 4 + length) {
+            in.compact();
+            in = grow(in, 4 + length);
+            in.flip();
+          }
+          break;
+        }
+        if (inFlight >= MAX_PIPELINE) {
+          blocked = true;
+          break;
+        }
+        String command = new String(in.array(), in.position() + 4, length,
+                                    StandardCharsets.UTF_8);
+        in.position(in.position() + 4 + length);
+        if (isQuit(command)) {
+          draining = true;
+        }
+        ++inFlight;
+        sessions.submit(session, s -> execute(s, command)).whenComplete((v, ex) -> {
+          completions.add(new Completion(this, ex));
+          selector.wakeup();
+        });
+      }
+      in.compact();
+      if (endOfStream && !blocked) {
+        draining = true;
+      }
+    }
+
+    // Runs on the session thread; a command that throws still gets a response, in its place
+    private Void execute(Session s, String command) {
+      try {
+        dispatcher.execute(s, command, out);
+      } catch (RuntimeException ex) {
+        ex.printStackTrace();
+        out.message("Command failed\n");
+      }
+      return null;
+    }
+
+    // Runs on the selector thread once a command's response is in out, in the order the
+    // session ran them. A failure here means the command never ran.
+    void completed(Throwable failure) {
+      if (disconnected) {
+        return;
+      }
+      --inFlight;
+      if (failure != null) {
+        out.message("Command failed\n");
+      }
+      flush();
+    }
+
+    void flush() {
+      try {
+        out.writeTo(channel);
+      } catch (IOException ex) {
+        close();
+        return;
+      }
+      update();
+    }
+
+    // Recomputes what the selector should wait for, resuming parsing first if the pipeline has
+    // room again
+    void update() {
+      if (blocked && inFlight < MAX_PIPELINE) {
+        parse();
+      }
+      if (!key.isValid()) {
+        return;
+      }
+      int pending = out.pending();
+      if (draining && inFlight == 0 && pending == 0) {
+        close();
+        return;
+      }
+      boolean canRead = !draining && !endOfStream && inFlight < MAX_PIPELINE;
+      key.interestOps((canRead ? SelectionKey.OP_READ : 0)
+                      | ((pending > 0) ? SelectionKey.OP_WRITE : 0));
+    }
+
+    void close() {
+      if (disconnected) {
+        return;
+      }
+      disconnected = true;
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException ex) {
+        // Nothing more can be sent on it either way
+      }
+      sessions.close(session);
+    }
+  }
+
+  /**
+   * A command that has run, or failed to, for the selector thread to account for.
+   */
+  private static final class Completion {
+    final Connection conn;
+    final Throwable failure;
+
+    Completion(Connection conn, Throwable failure) {
+      this.conn = conn;
+      this.failure = failure;
+    }
+  }
+
+  private static boolean isQuit(String command) {
+    String[] tokens = CommandDispatcher.tokenize(command.trim());
+    return tokens.length > 0 && tokens[0].equals("quit");
+  }
+
+  private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+    ByteBuffer grown = ByteBuffer.allocate(capacity);
+    buffer.flip();
+    grown.put(buffer);
+    return grown;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String dbPath = null;
+    int port = 9090;
+    int poolSize = 16;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "--db": dbPath = args[i + 1]; break;
+        case "--port": port = Integer.parseInt(args[i + 1]); break;
+        case "--pool": poolSize = Integer.parseInt(args[i + 1]); break;
+        default:
+          System.err.println("Unknown option " + args[i]);
+          System.exit(1);
+      }
+    }
+    if (dbPath == null) {
+      System.err.println("--db <dbconn.properties> is required");
+      System.exit(1);
+    }
+
+    // The pools live as long as the process; reads go to flightapp.read_server_url if the file
+    // names one
+    ConnectionPool pool = ConnectionPool.fromProperties(dbPath, poolSize);
+    ConnectionPool replica = ConnectionPool.readReplicaFromProperties(dbPath, poolSize);
+    String storage = System.getProperty("flightapp.storage", "jdbc").toLowerCase(Locale.ROOT);
+    FlightStore store = storage.equals("jdbc")
+      ? new JdbcFlightStore(pool, (replica == null) ? pool : replica)
+      : FlightStore.fromSystemProperties(pool);
+
+    FlightServer server = new FlightServer(new FlightTransactions(store),
+                                           new InetSocketAddress(port));
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        server.close();
+      } catch (IOException ex) {
+        ex.printStackTrace();
+      }
+    }));
+    System.out.println("Listening on port " + server.port());
+  }
+}
@@ -0,0 +1,149 @@
+package flightapp;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Where users, reservations and flights are kept.
+ *
+ * {@link FlightTransactions} turns commands into calls on a store and the results into response
+ * text; a store only has to make each call atomic and keep the invariants the SQL schema
+ * enforces (seats never oversold, one booking per user per day, balances never negative,
+ * reservation IDs handed out in order without gaps).
+ *
+ * Two stores exist: {@link JdbcFlightStore}, backed by the SQL Server database, and
+ * {@link InMemoryFlightStore}, which keeps everything in the process. -Dflightapp.storage picks
+ * one ({@code jdbc}, the default, or {@code memory}).
+ *
+ * Failures that are not a normal outcome of the call are reported as {@link SQLException}, so
+ * the caller handles both stores the same way.
+ */
+interface FlightStore {
+
+  /**
+   * Returned by {@link #bookAll} when the user already has a reservation on one of the days, or
+   * when two of the itineraries are on the same day.
+   */
+  int BOOK_SAME_DAY = -1;
+
+  /** Returned by {@link #bookAll} when a flight is full or the booking could not be made. */
+  int BOOK_FAILED = -2;
+
+  /**
+   * Outcome of {@link #pay}.
+   */
+  final class Payment {
+    static final int NOT_FOUND = 0;
+    static final int INSUFFICIENT_FUNDS = 1;
+    static final int PAID = 2;
+
+    final int status;
+    // The remaining balance once paid, otherwise the current balance
+    final int balance;
+    // Price times seats, which can be more than any balance
+    final long cost;
+
+    Payment(int status, int balance, long cost) {
+      this.status = status;
+      this.balance = balance;
+      this.cost = cost;
+    }
+  }
+
+  /**
+   * One reservation as listed by {@link #reservations}.
+   */
+  final class Reservation {
+    final int id;
+    final boolean paid;
+    final Itinerary itinerary;
+    // Seats held on every flight of the itinerary
+    final int seats;
+
+    Reservation(int id, boolean paid, Itinerary itinerary, int seats) {
+      this.id = id;
+      this.paid = paid;
+      this.itinerary = itinerary;
+      this.seats = seats;
+    }
+  }
+
+  /**
+   * Deletes every user and reservation.
+   */
+  void clear() throws SQLException;
+
+  /**
+   * @return the stored salted hash of {@code username}'s password, or null if there is no such
+   *         user
+   */
+  byte[] hashedPassword(String username) throws SQLException;
+
+  /**
+   * @return false if the username is already taken
+   */
+  boolean createUser(String username, byte[] hashedPassword, int balance) throws SQLException;
+
+  /**
+   * @param maxStops 0 for direct flights only, up to {@code Itinerary.MAX_LEGS - 1}
+   *
+   * @return up to {@code limit} itineraries ranked by {@code ranking}, in
+   *         {@link Itinerary.Ranking#order}
+   */
+  List<Itinerary> search(String originCity, String destinationCity, int maxStops,
+                         Itinerary.Ranking ranking, int dayOfMonth, int limit)
+    throws SQLException;
+
+  /**
+   * Searches every day from {@code firstDay} to {@code lastDay} at once.
+   *
+   * @return one list per day, in day order, each as {@link #search} would return it
+   */
+  List<List<Itinerary>> searchDays(String originCity, String destinationCity, int maxStops,
+                                   int firstDay, int lastDay, int limit) throws SQLException;
+
+  /**
+   * Books {@code seats} seats on every flight of each itinerary for {@code username}, as one
+   * reservation per itinerary, all in a single transaction: either every reservation is made or
+   * none is. The itineraries must all be on different days, none of which the user already has
+   * a reservation on. A reservation's price is {@code seats} times its itinerary's.
+   *
+   * @return the first new reservation ID, the others following it consecutively in the order of
+   *         {@code itineraries}; or {@link #BOOK_SAME_DAY} or {@link #BOOK_FAILED}
+   */
+  int bookAll(String username, List<Itinerary> itineraries, int seats) throws SQLException;
+
+  /**
+   * Pays for an unpaid reservation of {@code username} out of their balance.
+   */
+  Payment pay(String username, int reservationId) throws SQLException;
+
+  /**
+   * @return every reservation of {@code username}, ordered by ID
+   */
+  List<Reservation> reservations(String username) throws SQLException;
+
+  /**
+   * @return retry and deadlock counters for each transaction type, if the store retries
+   */
+  Map<String, TransactionRunner.Stats> transactionStats();
+
+  /**
+   * Opens the store selected by -Dflightapp.storage. The JDBC store uses {@code pool}; the
+   * in-memory store is shared by the whole process and only reads FLIGHTS through {@code pool}
+   * the first time it is created, and not at all if -Dflightapp.flights_csv is set.
+   */
+  static FlightStore fromSystemProperties(ConnectionPool pool) throws SQLException {
+    String storage = System.getProperty("flightapp.storage", "jdbc").toLowerCase(Locale.ROOT);
+    switch (storage) {
+      case "jdbc":
+        return new JdbcFlightStore(pool);
+      case "memory":
+        return InMemoryFlightStore.getInstance(pool);
+      default:
+        throw new IllegalArgumentException("Unknown flightapp.storage: " + storage);
+    }
+  }
+}
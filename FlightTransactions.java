@@ -0,0 +1,381 @@
+package flightapp;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The transactions behind every command, shared by all sessions in the process.
+ *
+ * This class holds no per-session state: the caller passes in the {@link Session} to act on.
+ * The data itself lives in a {@link FlightStore}; this class checks the session, calls the
+ * store and turns the outcome into the response strings documented on {@link Query}, which are
+ * the same whichever store is used. The commands with long responses can also write them to a
+ * {@link ResponseSink}, which lets the network server encode them without building the string.
+ */
+// Each transaction holds a Metrics.Scope in a try-with-resources block only to close it
+@SuppressWarnings("try")
+final class FlightTransactions {
+  // The longest day range a single flexible-date search may cover
+  static final int MAX_SEARCH_DAYS = 31;
+
+  private final FlightStore store;
+  private final SearchCache searchCache = SearchCache.getInstance();
+  private final PasswordHasher hasher = PasswordHasher.getInstance();
+  private final Metrics metrics = Metrics.getInstance();
+
+  FlightTransactions(FlightStore store) {
+    this.store = store;
+  }
+
+  void clearTables() {
+    try {
+      store.clear();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * @see Query#transaction_login(String, String)
+   */
+  String login(Session session, String username, String password) {
+    try (Metrics.Scope scope = metrics.begin("login")) {
+      final String FAILURE = "Login failed\n";
+
+      if (session.currUser != null) {
+        return "User already logged in\n";
+      }
+      username = username.toLowerCase();
+
+      try {
+        byte[] hashedPassword = store.hashedPassword(username);
+        // Hashing happens after the lookup has returned, outside any transaction
+        if (hashedPassword == null || !hasher.plaintextMatchesHash(password, hashedPassword)) {
+          return FAILURE;
+        }
+      } catch (SQLException | RejectedExecutionException ex) {
+        return FAILURE;
+      }
+
+      session.currUser = username;
+      session.currSearch = null;
+      return "Logged in as " + username + "\n";
+    }
+  }
+
+  /**
+   * @see Query#transaction_createCustomer(String, String, int)
+   */
+  String createCustomer(String username, String password, int initAmount) {
+    try (Metrics.Scope scope = metrics.begin("create")) {
+      final String FAILURE = "Failed to create user\n";
+
+      if (initAmount < 0) {
+        return FAILURE;
+      }
+
+      try {
+        // Don't spend a hash on a name that is already taken
+        if (store.hashedPassword(username) != null) {
+          return FAILURE;
+        }
+        byte[] hashedPassword = hasher.hashPassword(password);
+        if (!store.createUser(username, hashedPassword, initAmount)) {
+          return FAILURE;
+        }
+        return "Created user " + username + "\n";
+      } catch (SQLException | RejectedExecutionException ex) {
+        return FAILURE;
+      }
+    }
+  }
+
+  /**
+   * @see Query#transaction_search(String, String, boolean, int, int)
+   */
+  String search(Session session, String originCity, String destinationCity,
+                boolean directFlight, int dayOfMonth, int numberOfItineraries) {
+    return search(session, originCity, destinationCity, directFlight ? 0 : 1,
+                  Itinerary.Ranking.DURATION, dayOfMonth, numberOfItineraries);
+  }
+
+  /**
+   * Searches for itineraries with up to {@code maxStops} stops, which must be below
+   * {@link Itinerary#MAX_LEGS}, ranked by {@code ranking}; otherwise as
+   * {@link Query#transaction_search}.
+   */
+  String search(Session session, String originCity, String destinationCity, int maxStops,
+                Itinerary.Ranking ranking, int dayOfMonth, int numberOfItineraries) {
+    ResponseSink.Text out = new ResponseSink.Text();
+    search(session, originCity, destinationCity, maxStops, ranking, dayOfMonth,
+           numberOfItineraries, out);
+    return out.text();
+  }
+
+  /**
+   * As {@link #search(Session, String, String, int, Itinerary.Ranking, int, int)}, writing the
+   * response to {@code out}.
+   */
+  void search(Session session, String originCity, String destinationCity, int maxStops,
+              Itinerary.Ranking ranking, int dayOfMonth, int numberOfItineraries,
+              ResponseSink out) {
+    try (Metrics.Scope scope = metrics.begin("search")) {
+      final String FAILURE = "Failed to search\n";
+
+      if (numberOfItineraries <= 0 || maxStops < 0 || maxStops >= Itinerary.MAX_LEGS) {
+        out.message(FAILURE);
+        return;
+      }
+
+      session.currSearch = new ArrayList<>();
+      try {
+        SearchCache.Key key = new SearchCache.Key(originCity, destinationCity, maxStops, ranking,
+                                                  dayOfMonth, numberOfItineraries);
+        session.currSearch = searchCache.get(
+          key, () -> store.search(originCity, destinationCity, maxStops, ranking, dayOfMonth,
+                                  numberOfItineraries));
+
+        writeSearch(session.currSearch, out);
+      } catch (SQLException ex) {
+        ex.printStackTrace();
+        out.message(FAILURE);
+      }
+    }
+  }
+
+  /**
+   * Searches every day from {@code firstDay} to {@code lastDay}. With {@code perDay}, the best
+   * {@code numberOfItineraries} itineraries of each day are listed in day order; otherwise only
+   * the best {@code numberOfItineraries} across all of the days are. The results are numbered
+   * and booked like those of a single-day search.
+   *
+   * Each day is cached as its own single-day search, so only the days that are not cached yet
+   * go to the store, as one range.
+   */
+  String searchDays(Session session, String originCity, String destinationCity, int maxStops,
+                    int firstDay, int lastDay, int numberOfItineraries, boolean perDay) {
+    ResponseSink.Text out = new ResponseSink.Text();
+    searchDays(session, originCity, destinationCity, maxStops, firstDay, lastDay,
+               numberOfItineraries, perDay, out);
+    return out.text();
+  }
+
+  /**
+   * As {@link #searchDays(Session, String, String, int, int, int, int, boolean)}, writing the
+   * response to {@code out}.
+   */
+  void searchDays(Session session, String originCity, String destinationCity, int maxStops,
+                  int firstDay, int lastDay, int numberOfItineraries, boolean perDay,
+                  ResponseSink out) {
+    try (Metrics.Scope scope = metrics.begin("searchDays")) {
+      final String FAILURE = "Failed to search\n";
+
+      if (numberOfItineraries <= 0 || maxStops < 0 || maxStops >= Itinerary.MAX_LEGS
+          || firstDay > lastDay || lastDay - firstDay >= MAX_SEARCH_DAYS) {
+        out.message(FAILURE);
+        return;
+      }
+
+      session.currSearch = new ArrayList<>();
+      try {
+        List<List<Itinerary>> days = new ArrayList<>(lastDay - firstDay + 1);
+        int firstMissing = -1;
+        int lastMissing = -1;
+        for (int day = firstDay; day <= lastDay; ++day) {
+          List<Itinerary> cached = searchCache.getIfPresent(
+            new SearchCache.Key(originCity, destinationCity, maxStops, Itinerary.Ranking.DURATION,
+                                day, numberOfItineraries));
+          days.add(cached);
+          if (cached == null) {
+            firstMissing = (firstMissing < 0) ? day : firstMissing;
+            lastMissing = day;
+          }
+        }
+
+        if (firstMissing >= 0) {
+          List<List<Itinerary>> found = store.searchDays(originCity, destinationCity, maxStops,
+                                                         firstMissing, lastMissing,
+                                                         numberOfItineraries);
+          for (int day = firstMissing; day <= lastMissing; ++day) {
+            if (days.get(day - firstDay) == null) {
+              SearchCache.Key key = new SearchCache.Key(originCity, destinationCity, maxStops,
+                                                        Itinerary.Ranking.DURATION, day,
+                                                        numberOfItineraries);
+              days.set(day - firstDay, searchCache.put(key, found.get(day - firstMissing)));
+            }
+          }
+        }
+
+        List<Itinerary> results = new ArrayList<>();
+        if (perDay) {
+          days.forEach(results::addAll);
+        } else {
+          List<TopKMerger.Source<Itinerary>> sources = new ArrayList<>(days.size());
+          days.forEach(day -> sources.add(TopKMerger.of(day)));
+          results = TopKMerger.merge(sources, numberOfItineraries);
+        }
+        session.currSearch = results;
+        writeSearch(results, out);
+      } catch (SQLException ex) {
+        ex.printStackTrace();
+        out.message(FAILURE);
+      }
+    }
+  }
+
+  private static void writeSearch(List<Itinerary> itineraries, ResponseSink out) {
+    if (itineraries.isEmpty()) {
+      out.message("No flights match your selection\n");
+    } else {
+      out.itineraries(itineraries);
+    }
+  }
+
+  /**
+   * @see Query#transaction_book(int)
+   */
+  String book(Session session, int itineraryId) {
+    return book(session, new int[] {itineraryId}, 1);
+  }
+
+  /**
+   * Books {@code seats} seats on each of the given itineraries of the last search, all in one
+   * transaction: either every itinerary is booked or none is. The reservations get consecutive
+   * IDs, one per itinerary, and each is paid for as a whole. Asking for more seats than a
+   * flight has fails before the store is asked.
+   */
+  String book(Session session, int[] itineraryIds, int seats) {
+    try (Metrics.Scope scope = metrics.begin("book")) {
+      if (session.currUser == null) {
+        return "Cannot book reservations, not logged in\n";
+      } else if (seats <= 0) {
+        return "Number of seats must be positive\n";
+      }
+      List<Itinerary> itineraries = new ArrayList<>(itineraryIds.length);
+      for (int itineraryId : itineraryIds) {
+        if (session.currSearch == null || session.currSearch.isEmpty()
+            || itineraryId < 0 || itineraryId >= session.currSearch.size()) {
+          return "No such itinerary " + itineraryId + "\n";
+        }
+        itineraries.add(session.currSearch.get(itineraryId));
+      }
+
+      final String FAILURE = "Booking failed\n";
+      // More seats than a flight has can never be booked, and would overflow the seat counts
+      for (Itinerary itn : itineraries) {
+        for (int i = 0; i < itn.getNumFlights(); ++i) {
+          if (seats > itn.leg(i).capacity) {
+            return FAILURE;
+          }
+        }
+      }
+      try {
+        int reservationId = store.bookAll(session.currUser, itineraries, seats);
+        if (reservationId == FlightStore.BOOK_SAME_DAY) {
+          return "You cannot book two flights in the same day\n";
+        } else if (reservationId < 0) {
+          return FAILURE;
+        } else if (itineraryIds.length == 1 && seats == 1) {
+          return "Booked flight(s), reservation ID: " + reservationId + "\n";
+        }
+        StringBuilder sb = new StringBuilder("Booked flight(s), reservation IDs: ");
+        for (int i = 0; i < itineraryIds.length; ++i) {
+          sb.append((i == 0) ? "" : ", ").append(reservationId + i);
+        }
+        if (seats > 1) {
+          sb.append(" (" + seats + " seats each)");
+        }
+        return sb.append('\n').toString();
+      } catch (SQLException ex) {
+        return FAILURE;
+      }
+    }
+  }
+
+  /**
+   * @see Query#transaction_pay(int)
+   */
+  String pay(Session session, int reservationId) {
+    try (Metrics.Scope scope = metrics.begin("pay")) {
+      if (session.currUser == null) {
+        return "Cannot pay, not logged in\n";
+      }
+
+      final String FAILURE = "Failed to pay for reservation " + reservationId + "\n";
+      try {
+        FlightStore.Payment payment = store.pay(session.currUser, reservationId);
+        switch (payment.status) {
+          case FlightStore.Payment.NOT_FOUND:
+            return "Cannot find unpaid reservation " + reservationId
+              + " under user: " + session.currUser + "\n";
+          case FlightStore.Payment.INSUFFICIENT_FUNDS:
+            return "User has only " + payment.balance + " in account but itinerary costs "
+              + payment.cost + "\n";
+          case FlightStore.Payment.PAID:
+            return "Paid reservation: " + reservationId + " remaining balance: "
+              + payment.balance + "\n";
+          default:
+            return FAILURE;
+        }
+      } catch (SQLException ex) {
+        return FAILURE;
+      }
+    }
+  }
+
+  /**
+   * @see Query#transaction_reservations()
+   */
+  String reservations(Session session) {
+    ResponseSink.Text out = new ResponseSink.Text();
+    reservations(session, out);
+    return out.text();
+  }
+
+  /**
+   * As {@link #reservations(Session)}, writing the response to {@code out}.
+   */
+  void reservations(Session session, ResponseSink out) {
+    try (Metrics.Scope scope = metrics.begin("reservations")) {
+      if (session.currUser == null) {
+        out.message("Cannot view reservations, not logged in\n");
+        return;
+      }
+
+      final String FAILURE = "Failed to retrieve reservations\n";
+      try {
+        List<FlightStore.Reservation> reservations = store.reservations(session.currUser);
+        if (reservations.isEmpty()) {
+          out.message("No reservations found\n");
+        } else {
+          out.reservations(reservations);
+        }
+      } catch (SQLException ex) {
+        out.message(FAILURE);
+      }
+    }
+  }
+
+  /**
+   * @return the output of the stats command: per-transaction and per-statement metrics for the
+   *         whole process, then the password hasher and the caches
+   */
+  String stats() {
+    return metrics.report()
+      + "password hashing: queued=" + hasher.queueDepth() + " completed="
+      + hasher.completedCount() + " rejected=" + hasher.rejectedCount() + " mean="
+      + hasher.meanLatencyMicros() + "us max=" + hasher.maxLatencyMicros() + "us\n"
+      + "search cache: size=" + searchCache.size() + " hits=" + searchCache.hitCount()
+      + " misses=" + searchCache.missCount() + "\n";
+  }
+
+  /**
+   * @return retry and deadlock counters for each transaction type
+   */
+  Map<String, TransactionRunner.Stats> transactionStats() {
+    return store.transactionStats();
+  }
+}
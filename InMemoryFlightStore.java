@@ -0,0 +1,341 @@
+package flightapp;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link FlightStore} that keeps users, balances, reservations and seat counts in the process,
+ * with flights served from a {@link FlightIndex}. Nothing goes over the network, and nothing
+ * survives a restart.
+ *
+ * The invariants the SQL transactions enforce are kept with two kinds of locks:
+ * <ul>
+ *   <li>each user's balance and reservations are guarded by that user's monitor, so the
+ *       same-day check and the insert of a booking, or the balance check and the debit of a
+ *       payment, happen atomically;
+ *   <li>seat counts are guarded by a fixed array of striped locks, indexed by flight row. A
+ *       booking takes the stripes of all the legs of all its itineraries in ascending order,
+ *       so it never deadlocks with another booking.
+ * </ul>
+ * User locks are always taken before stripe locks. Reservation IDs are only drawn once the
+ * seats are held and nothing else can fail, and a booking of several itineraries draws them as
+ * one block, so IDs stay gap-free, as they do with {@link ReservationIdAllocator}.
+ *
+ * Usernames compare case-insensitively, as they do under the database's default collation.
+ */
+final class InMemoryFlightStore implements FlightStore {
+  private static final int FLIGHT_STRIPES = 1024;
+
+  private static InMemoryFlightStore instance;
+
+  private static final class User {
+    final byte[] hashedPassword;
+    // Guarded by this
+    int balance;
+    final List<Held> reservations = new ArrayList<>();
+
+    User(byte[] hashedPassword, int balance) {
+      this.hashedPassword = hashedPassword;
+      this.balance = balance;
+    }
+  }
+
+  // A reservation as stored: flight rows rather than Flight objects
+  private static final class Held {
+    final int id;
+    final int[] rows;
+    final int seats;
+    boolean paid;
+
+    Held(int id, int[] rows, int seats) {
+      this.id = id;
+      this.rows = rows;
+      this.seats = seats;
+    }
+  }
+
+  private final FlightIndex flights;
+  private final Map<String, User> users = new ConcurrentHashMap<>();
+  private final AtomicInteger lastReservationId = new AtomicInteger();
+
+  // booked[row] is guarded by stripes[row % FLIGHT_STRIPES]
+  private final int[] booked;
+  private final Object[] stripes = new Object[FLIGHT_STRIPES];
+
+  InMemoryFlightStore(FlightIndex flights) {
+    this.flights = flights;
+    this.booked = new int[flights.size()];
+    for (int i = 0; i < stripes.length; ++i) {
+      stripes[i] = new Object();
+    }
+  }
+
+  /**
+   * Returns the process-wide store over {@link FlightIndex#getInstance}, which only uses
+   * {@code pool} if no flights CSV file is configured.
+   */
+  static synchronized InMemoryFlightStore getInstance(ConnectionPool pool) throws SQLException {
+    if (instance == null) {
+      instance = new InMemoryFlightStore(FlightIndex.getInstance(pool));
+    }
+    return instance;
+  }
+
+  @Override
+  public void clear() {
+    users.clear();
+    for (int stripe = 0; stripe < stripes.length; ++stripe) {
+      synchronized (stripes[stripe]) {
+        for (int row = stripe; row < booked.length; row += FLIGHT_STRIPES) {
+          booked[row] = 0;
+        }
+      }
+    }
+    lastReservationId.set(0);
+  }
+
+  @Override
+  public byte[] hashedPassword(String username) {
+    User user = users.get(key(username));
+    return (user == null) ? null : user.hashedPassword;
+  }
+
+  @Override
+  public boolean createUser(String username, byte[] hashedPassword, int balance) {
+    return users.putIfAbsent(key(username), new User(hashedPassword, balance)) == null;
+  }
+
+  @Override
+  public List<Itinerary> search(String originCity, String destinationCity, int maxStops,
+                                Itinerary.Ranking ranking, int dayOfMonth, int limit) {
+    return flights.search(originCity, destinationCity, maxStops, ranking, dayOfMonth, limit);
+  }
+
+  @Override
+  public List<List<Itinerary>> searchDays(String originCity, String destinationCity, int maxStops,
+                                          int firstDay, int lastDay, int limit) {
+    return flights.searchDays(originCity, destinationCity, maxStops, firstDay, lastDay, limit);
+  }
+
+  @Override
+  public int bookAll(String username, List<Itinerary> itineraries, int seats) {
+    User user = users.get(key(username));
+    if (user == null || itineraries.isEmpty() || seats <= 0) {
+      return BOOK_FAILED;
+    }
+    int[][] rows = new int[itineraries.size()][];
+    int legs = 0;
+    for (int i = 0; i < rows.length; ++i) {
+      Itinerary itn = itineraries.get(i);
+      rows[i] = new int[itn.getNumFlights()];
+      for (int leg = 0; leg < rows[i].length; ++leg) {
+        rows[i][leg] = flights.rowOf(itn.leg(leg).fid);
+        if (rows[i][leg] < 0) {
+          return BOOK_FAILED;
+        }
+      }
+      legs += rows[i].length;
+      for (int j = 0; j < i; ++j) {
+        if (flights.dayOfMonth(rows[j][0]) == flights.dayOfMonth(rows[i][0])) {
+          return BOOK_SAME_DAY;
+        }
+      }
+    }
+
+    // Itineraries on different days never share a flight, so every row here is distinct
+    int[] allRows = new int[legs];
+    int next = 0;
+    for (int[] itineraryRows : rows) {
+      for (int row : itineraryRows) {
+        allRows[next++] = row;
+      }
+    }
+
+    synchronized (user) {
+      for (Held held : user.reservations) {
+        for (int[] itineraryRows : rows) {
+          if (flights.dayOfMonth(held.rows[0]) == flights.dayOfMonth(itineraryRows[0])) {
+            return BOOK_SAME_DAY;
+          }
+        }
+      }
+      if (!reserveSeats(allRows, seats)) {
+        return BOOK_FAILED;
+      }
+      int firstId = lastReservationId.getAndAdd(rows.length) + 1;
+      for (int i = 0; i < rows.length; ++i) {
+        user.reservations.add(new Held(firstId + i, rows[i], seats));
+      }
+      return firstId;
+    }
+  }
+
+  /**
+   * Books {@code seats} seats on each of {@code rows} if every one of them has that many free.
+   */
+  private boolean reserveSeats(int[] rows, int seats) {
+    int[] held = new int[rows.length];
+    for (int i = 0; i < rows.length; ++i) {
+      held[i] = rows[i] % FLIGHT_STRIPES;
+    }
+    Arrays.sort(held);
+    return reserveSeats(rows, seats, held, 0);
+  }
+
+  // Takes the stripes from held[next] on, skipping repeats, then books the seats
+  private boolean reserveSeats(int[] rows, int seats, int[] held, int next) {
+    if (next < held.length) {
+      if (next > 0 && held[next] == held[next - 1]) {
+        return reserveSeats(rows, seats, held, next + 1);
+      }
+      synchronized (stripes[held[next]]) {
+        return reserveSeats(rows, seats, held, next + 1);
+      }
+    }
+
+    for (int row : rows) {
+      if (seats > flights.capacity(row) - booked[row]) {
+        return false;
+      }
+    }
+    for (int row : rows) {
+      booked[row] += seats;
+    }
+    return true;
+  }
+
+  @Override
+  public Payment pay(String username, int reservationId) {
+    User user = users.get(key(username));
+    if (user == null) {
+      return new Payment(Payment.NOT_FOUND, 0, 0);
+    }
+
+    synchronized (user) {
+      Held held = find(user, reservationId);
+      if (held == null || held.paid) {
+        return new Payment(Payment.NOT_FOUND, 0, 0);
+      }
+      long cost = 0;
+      for (int row : held.rows) {
+        cost += flights.price(row);
+      }
+      cost *= held.seats;
+      if (user.balance < cost) {
+        return new Payment(Payment.INSUFFICIENT_FUNDS, user.balance, cost);
+      }
+      user.balance -= (int) cost;
+      held.paid = true;
+      return new Payment(Payment.PAID, user.balance, cost);
+    }
+  }
+
+  @Override
+  public List<Reservation> reservations(String username) {
+    User user = users.get(key(username));
+    if (user == null) {
+      return Collections.emptyList();
+    }
+
+    synchronized (user) {
+      List<Reservation> reservations = new ArrayList<>(user.reservations.size());
+      for (Held held : user.reservations) {
+        Flight[] legs = new Flight[held.rows.length];
+        for (int i = 0; i < legs.length; ++i) {
+          legs[i] = flights.flight(held.rows[i]);
+        }
+        reservations.add(new Reservation(held.id, held.paid, new Itinerary(legs), held.seats));
+      }
+      return reservations;
+    }
+  }
+
+  @Override
+  public Map<String, TransactionRunner.Stats> transactionStats() {
+    return Collections.emptyMap();
+  }
+
+  /**
+   * Checks the invariants the store is meant to keep; used by the load generator.
+   *
+   * @return a description of every violation found, empty if there are none
+   */
+  List<String> invariantViolations() {
+    List<String> violations = new ArrayList<>();
+    for (int stripe = 0; stripe < stripes.length; ++stripe) {
+      synchronized (stripes[stripe]) {
+        for (int row = stripe; row < booked.length; row += FLIGHT_STRIPES) {
+          if (booked[row] > flights.capacity(row)) {
+            violations.add("flight " + flights.fid(row) + " has " + booked[row]
+                           + " bookings for " + flights.capacity(row) + " seats");
+          }
+        }
+      }
+    }
+
+    List<Integer> ids = new ArrayList<>();
+    for (Map.Entry<String, User> entry : users.entrySet()) {
+      User user = entry.getValue();
+      synchronized (user) {
+        if (user.balance < 0) {
+          violations.add("user " + entry.getKey() + " has balance " + user.balance);
+        }
+        for (Held held : user.reservations) {
+          ids.add(held.id);
+        }
+      }
+    }
+    int[] sorted = ids.stream().mapToInt(Integer::intValue).toArray();
+    Arrays.sort(sorted);
+    for (int i = 0; i < sorted.length; ++i) {
+      if (sorted[i] != i + 1) {
+        violations.add("reservation IDs are not 1.." + sorted.length + ": found " + sorted[i]
+                       + " at position " + (i + 1));
+        break;
+      }
+    }
+    return violations;
+  }
+
+  /**
+   * @return the number of reservations held by all users
+   */
+  int reservationCount() {
+    int count = 0;
+    for (User user : users.values()) {
+      synchronized (user) {
+        count += user.reservations.size();
+      }
+    }
+    return count;
+  }
+
+  // A user's reservations are appended in ID order
+  private static Held find(User user, int reservationId) {
+    int lo = 0;
+    int hi = user.reservations.size() - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      Held held = user.reservations.get(mid);
+      if (held.id < reservationId) {
+        lo = mid + 1;
+      } else if (held.id > reservationId) {
+        hi = mid - 1;
+      } else {
+        return held;
+      }
+    }
+    return null;
+  }
+
+  private static String key(String username) {
+    return username.toLowerCase(Locale.ROOT);
+  }
+}
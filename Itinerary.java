@@ -0,0 +1,95 @@
+package flightapp;
+
+import java.util.Comparator;
+
+/**
+ * One or more flights on the same day, each leaving from the city the previous one arrived at.
+ */
+class Itinerary implements Comparable<Itinerary> {
+  // The most flights an itinerary can have, i.e. at most MAX_LEGS - 1 stops
+  static final int MAX_LEGS = 4;
+
+  /**
+   * What a search ranks itineraries by.
+   */
+  enum Ranking {
+    /** Shortest total duration first; the default. */
+    DURATION,
+    /** Cheapest total price first. */
+    PRICE,
+    /**
+     * Only itineraries no other one beats on both duration and price, shortest (and so most
+     * expensive) first.
+     */
+    PARETO;
+
+    /**
+     * @return the order results of this ranking are listed in
+     */
+    Comparator<Itinerary> order() {
+      return (this == PRICE) ? BY_PRICE : Comparator.naturalOrder();
+    }
+  }
+
+  /** Orders by total price, then by the fids of the legs like {@link #compareTo}. */
+  static final Comparator<Itinerary> BY_PRICE = (a, b) -> (a.totalPrice != b.totalPrice)
+    ? Integer.compare(a.totalPrice, b.totalPrice) : a.compareLegs(b);
+
+  private final Flight[] legs;
+  public final int totalDuration;
+  public final int totalPrice;
+
+  public Itinerary(Flight... legs) {
+    if (legs.length == 0 || legs.length > MAX_LEGS) {
+      throw new IllegalArgumentException("An itinerary has 1 to " + MAX_LEGS + " flights");
+    }
+    this.legs = legs.clone();
+    int total = 0;
+    int price = 0;
+    for (Flight leg : legs) {
+      total += leg.time;
+      price += leg.price;
+    }
+    this.totalDuration = total;
+    this.totalPrice = price;
+  }
+
+  public int getNumFlights() { return legs.length; }
+  public boolean isDirect() { return legs.length == 1; }
+
+  /**
+   * @return the {@code i}-th flight, starting from 0
+   */
+  public Flight leg(int i) { return legs[i]; }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Flight leg : legs) {
+      sb.append(leg).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Orders by total duration, then by the fids of the legs in turn; an itinerary that runs out
+   * of legs first comes first.
+   */
+  @Override
+  public int compareTo(Itinerary other) {
+    if (this.totalDuration != other.totalDuration) {
+      return this.totalDuration - other.totalDuration;
+    }
+    return compareLegs(other);
+  }
+
+  private int compareLegs(Itinerary other) {
+    int common = Math.min(legs.length, other.legs.length);
+    for (int i = 0; i < common; ++i) {
+      if (legs[i].fid != other.legs[i].fid) {
+        return legs[i].fid - other.legs[i].fid;
+      }
+    }
+    return legs.length - other.legs.length;
+  }
+}
@@ -0,0 +1,777 @@
+package flightapp;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link FlightStore} backed by the SQL Server database.
+ *
+ * Every call borrows a connection from the pool only for as long as it needs one, and runs
+ * through a {@link TransactionRunner} so that deadlocks and other transient failures are
+ * retried.
+ *
+ * Calls that only read (the password lookup, searches and listing reservations) run as read-only
+ * work: in autocommit mode at the runner's read isolation level, on the read pool if one is
+ * given. Creating users, booking and paying always go to the primary pool. A read pool that
+ * points at an asynchronous replica can lag behind the primary, so a user may briefly be unable
+ * to log in right after being created or not yet see a reservation they just booked.
+ */
+final class JdbcFlightStore implements FlightStore {
+
+  // Create a user
+  private static final String CREATE_USER_SQL = "INSERT INTO Users VALUES(?, ?, ?)";
+
+  // Fetch info about an existing user
+  private static final String FETCH_USER_SQL
+    = "SELECT username, hashedPassword, balance"
+    + "  FROM Users WHERE username = ?";
+
+  private static final String ONE_HOP_SQL
+    = "   SELECT TOP(?) fid, day_of_month, carrier_id, flight_num, origin_city, dest_city,"
+    + "          actual_time, capacity, price"
+    + "     FROM Flights"
+    + "    WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND canceled != 1"
+    + " ORDER BY actual_time ASC, fid ASC";
+
+  // Two-hop itineraries
+  private static final String TWO_HOP_SQL
+    = "  SELECT "
+    // First-hop fields:
+    + "         TOP(?) f1.fid AS f1_fid, f1.day_of_month AS f1_day_of_month,"
+    + "         f1.carrier_id AS f1_carrier_id, f1.flight_num AS f1_flight_num,"
+    + "         f1.origin_city AS f1_origin_city, f1.dest_city AS f1_dest_city,"
+    + "         f1.actual_time AS f1_actual_time, f1.capacity as f1_capacity,"
+    + "         f1.price as f1_price,"
+    // Second-hop fields:
+    + "         f2.fid AS f2_fid, f2.day_of_month AS f2_day_of_month,"
+    + "         f2.carrier_id AS f2_carrier_id, f2.flight_num AS f2_flight_num,"
+    + "         f2.origin_city AS f2_origin_city, f2.dest_city AS f2_dest_city,"
+    + "         f2.actual_time as f2_actual_time,"
+    + "         (f1.actual_time + f2.actual_time) AS total_time,"
+    + "         f2.capacity as f2_capacity, f2.price as f2_price"
+    + "    FROM Flights f1, Flights f2 "
+    + "   WHERE f1.origin_city = ? AND f2.dest_city = ? AND f1.day_of_month = ?"
+    + "     AND f2.day_of_month = f1.day_of_month AND f1.dest_city = f2.origin_city"
+    + "     AND f1.canceled != 1 AND f2.canceled != 1 "
+    + "ORDER BY total_time, f1_fid, f2_fid ASC";
+
+  // ONE_HOP_SQL and TWO_HOP_SQL for searches ranked by price
+  private static final String ONE_HOP_BY_PRICE_SQL
+    = "   SELECT TOP(?) fid, day_of_month, carrier_id, flight_num, origin_city, dest_city,"
+    + "          actual_time, capacity, price"
+    + "     FROM Flights"
+    + "    WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND canceled != 1"
+    + " ORDER BY price ASC, fid ASC";
+
+  private static final String TWO_HOP_BY_PRICE_SQL
+    = "  SELECT "
+    + "         TOP(?) f1.fid AS f1_fid, f1.day_of_month AS f1_day_of_month,"
+    + "         f1.carrier_id AS f1_carrier_id, f1.flight_num AS f1_flight_num,"
+    + "         f1.origin_city AS f1_origin_city, f1.dest_city AS f1_dest_city,"
+    + "         f1.actual_time AS f1_actual_time, f1.capacity as f1_capacity,"
+    + "         f1.price as f1_price,"
+    + "         f2.fid AS f2_fid, f2.day_of_month AS f2_day_of_month,"
+    + "         f2.carrier_id AS f2_carrier_id, f2.flight_num AS f2_flight_num,"
+    + "         f2.origin_city AS f2_origin_city, f2.dest_city AS f2_dest_city,"
+    + "         f2.actual_time as f2_actual_time,"
+    + "         (f1.price + f2.price) AS total_price,"
+    + "         f2.capacity as f2_capacity, f2.price as f2_price"
+    + "    FROM Flights f1, Flights f2 "
+    + "   WHERE f1.origin_city = ? AND f2.dest_city = ? AND f1.day_of_month = ?"
+    + "     AND f2.day_of_month = f1.day_of_month AND f1.dest_city = f2.origin_city"
+    + "     AND f1.canceled != 1 AND f2.canceled != 1 "
+    + "ORDER BY total_price, f1_fid, f2_fid ASC";
+
+  // The Pareto front of price against duration over the direct and, unless the fourth
+  // parameter is 1, one-stop itineraries. Candidates are ordered by duration, then price, then
+  // fids, and one is kept if it is cheaper than every candidate before it, so of itineraries
+  // with the same duration only the cheapest can be. A direct flight has null f2_ columns.
+  private static final String PARETO_SQL
+    = "WITH Candidates AS ("
+    + "  SELECT fid AS f1_fid, day_of_month AS f1_day_of_month, carrier_id AS f1_carrier_id,"
+    + "         flight_num AS f1_flight_num, origin_city AS f1_origin_city,"
+    + "         dest_city AS f1_dest_city, actual_time AS f1_actual_time,"
+    + "         capacity AS f1_capacity, price AS f1_price,"
+    + "         NULL AS f2_fid, NULL AS f2_day_of_month, NULL AS f2_carrier_id,"
+    + "         NULL AS f2_flight_num, NULL AS f2_origin_city, NULL AS f2_dest_city,"
+    + "         NULL AS f2_actual_time, NULL AS f2_capacity, NULL AS f2_price,"
+    + "         actual_time AS total_time, price AS total_price"
+    + "    FROM Flights"
+    + "   WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND canceled != 1"
+    + "  UNION ALL"
+    + "  SELECT f1.fid, f1.day_of_month, f1.carrier_id, f1.flight_num, f1.origin_city,"
+    + "         f1.dest_city, f1.actual_time, f1.capacity, f1.price,"
+    + "         f2.fid, f2.day_of_month, f2.carrier_id, f2.flight_num, f2.origin_city,"
+    + "         f2.dest_city, f2.actual_time, f2.capacity, f2.price,"
+    + "         f1.actual_time + f2.actual_time, f1.price + f2.price"
+    + "    FROM Flights f1, Flights f2"
+    + "   WHERE ? = 0 AND f1.origin_city = ? AND f2.dest_city = ? AND f1.day_of_month = ?"
+    + "     AND f2.day_of_month = f1.day_of_month AND f1.dest_city = f2.origin_city"
+    + "     AND f1.canceled != 1 AND f2.canceled != 1"
+    + "), Ranked AS ("
+    + "  SELECT *, MIN(total_price) OVER (ORDER BY total_time, total_price, f1_fid, f2_fid"
+    + "                                   ROWS BETWEEN UNBOUNDED PRECEDING AND 1 PRECEDING)"
+    + "              AS shorter_price"
+    + "    FROM Candidates"
+    + ")"
+    + "   SELECT TOP(?) *"
+    + "     FROM Ranked"
+    + "    WHERE shorter_price IS NULL OR total_price < shorter_price"
+    + " ORDER BY total_time, total_price, f1_fid, f2_fid";
+
+  // The best direct flights of each day in a range, ranked on the server
+  private static final String ONE_HOP_DAYS_SQL
+    = "   SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city,"
+    + "          actual_time, capacity, price"
+    + "     FROM (SELECT *, ROW_NUMBER() OVER (PARTITION BY day_of_month"
+    + "                                        ORDER BY actual_time, fid) AS day_rank"
+    + "             FROM Flights"
+    + "            WHERE origin_city = ? AND dest_city = ? AND day_of_month BETWEEN ? AND ?"
+    + "              AND canceled != 1) AS f"
+    + "    WHERE day_rank <= ?"
+    + " ORDER BY day_of_month, actual_time, fid";
+
+  // The best two-hop itineraries of each day in a range, with the columns of TWO_HOP_SQL
+  private static final String TWO_HOP_DAYS_SQL
+    = "   SELECT *"
+    + "     FROM (SELECT f1.fid AS f1_fid, f1.day_of_month AS f1_day_of_month,"
+    + "                  f1.carrier_id AS f1_carrier_id, f1.flight_num AS f1_flight_num,"
+    + "                  f1.origin_city AS f1_origin_city, f1.dest_city AS f1_dest_city,"
+    + "                  f1.actual_time AS f1_actual_time, f1.capacity as f1_capacity,"
+    + "                  f1.price as f1_price,"
+    + "                  f2.fid AS f2_fid, f2.day_of_month AS f2_day_of_month,"
+    + "                  f2.carrier_id AS f2_carrier_id, f2.flight_num AS f2_flight_num,"
+    + "                  f2.origin_city AS f2_origin_city, f2.dest_city AS f2_dest_city,"
+    + "                  f2.actual_time as f2_actual_time,"
+    + "                  (f1.actual_time + f2.actual_time) AS total_time,"
+    + "                  f2.capacity as f2_capacity, f2.price as f2_price,"
+    + "                  ROW_NUMBER() OVER (PARTITION BY f1.day_of_month"
+    + "                                     ORDER BY f1.actual_time + f2.actual_time,"
+    + "                                              f1.fid, f2.fid) AS day_rank"
+    + "             FROM Flights f1, Flights f2"
+    + "            WHERE f1.origin_city = ? AND f2.dest_city = ?"
+    + "              AND f1.day_of_month BETWEEN ? AND ?"
+    + "              AND f2.day_of_month = f1.day_of_month AND f1.dest_city = f2.origin_city"
+    + "              AND f1.canceled != 1 AND f2.canceled != 1) AS t"
+    + "    WHERE day_rank <= ?"
+    + " ORDER BY f1_day_of_month, total_time, f1_fid, f2_fid";
+
+  // Whether the user has a reservation on any of a comma-separated list of days
+  private static final String NO_OTHER_FLIGHTS_SQL
+    = "SELECT 1 FROM Reservations r, Flights f "
+    + "WHERE r.fid1 = f.fid AND r.username = ?"
+    + "  AND f.day_of_month IN (SELECT CAST(value AS INT) FROM STRING_SPLIT(?, ','))";
+
+  // fid2 is null for a direct flight
+  private static final String CREATE_RESERVATION_SQL
+    = "INSERT INTO Reservations (res_id, paid, username, fid1, fid2, seats)"
+    + " VALUES (?, 0, ?, ?, ?, ?)";
+
+  // The third and later legs of an itinerary with more than one stop
+  private static final String CREATE_RESERVATION_LEG_SQL
+    = "INSERT INTO ReservationLegs VALUES (?, ?, ?)";
+
+  // Pays for a reservation in one round trip. The itinerary cost is computed on the server, and
+  // the balance is only debited if it covers the cost, so Users is locked for a single UPDATE.
+  // Returns one row: status 0 = no such unpaid reservation, 1 = balance too low (balance is the
+  // current balance), 2 = paid (balance is the remaining balance).
+  private static final String PAY_RESERVATION_SQL
+    = "SET NOCOUNT ON; SET XACT_ABORT ON;"
+    + "DECLARE @res_id INT = ?, @username VARCHAR(20) = ?, @cost BIGINT, @balance INT;"
+    + "BEGIN TRANSACTION;"
+    + "SELECT @cost = CAST(r.seats AS BIGINT)"
+    + "             * (f1.price + COALESCE(f2.price, 0)"
+    + "                + (SELECT COALESCE(SUM(f.price), 0)"
+    + "                     FROM ReservationLegs l JOIN Flights f ON f.fid = l.fid"
+    + "                    WHERE l.res_id = r.res_id))"
+    + "  FROM Reservations r WITH (UPDLOCK)"
+    + "  JOIN Flights f1 ON f1.fid = r.fid1"
+    + "  LEFT OUTER JOIN Flights f2 ON f2.fid = r.fid2"
+    + " WHERE r.res_id = @res_id AND r.paid = 0 AND r.username = @username;"
+    + "IF @cost IS NULL"
+    + "  SELECT 0 AS status, 0 AS balance, 0 AS cost;"
+    + "ELSE BEGIN"
+    + "  UPDATE Users SET @balance = balance = balance - @cost"
+    + "   WHERE username = @username AND balance >= @cost;"
+    + "  IF @@ROWCOUNT = 0"
+    + "    SELECT 1 AS status, balance, @cost AS cost FROM Users WHERE username = @username;"
+    + "  ELSE BEGIN"
+    + "    UPDATE Reservations SET paid = 1 WHERE res_id = @res_id;"
+    + "    SELECT 2 AS status, @balance AS balance, @cost AS cost;"
+    + "  END "
+    + "END "
+    + "COMMIT TRANSACTION;";
+
+  // Flight details come from the flight cache, so only the reservation rows are read here. A
+  // reservation with more than two legs spans several rows, one per leg after the second.
+  private static final String GET_RESERVATIONS_SQL
+    = "   SELECT r.res_id, r.paid, r.seats, r.fid1, r.fid2, l.fid AS fid_n"
+    + "     FROM Reservations r "
+    + "LEFT JOIN ReservationLegs l ON l.res_id = r.res_id"
+    + "    WHERE r.username = ?"
+    + " ORDER BY r.res_id, l.leg";
+
+  // Searches are answered from the in-memory flight index unless it is switched off with
+  // -Dflightapp.flight_index=false, in which case they fall back to ONE_HOP_SQL / TWO_HOP_SQL.
+  // Searches with more than one stop always use the index.
+  private static final boolean USE_FLIGHT_INDEX
+    = Boolean.parseBoolean(System.getProperty("flightapp.flight_index", "true"));
+
+  // Indirect database searches run their two queries concurrently, each bounded by this timeout
+  private static final boolean PARALLEL_SEARCH
+    = Boolean.parseBoolean(System.getProperty("flightapp.parallel_search", "true"));
+  private static final long SEARCH_TIMEOUT_MS
+    = Long.getLong("flightapp.search_timeout_ms", 10_000L);
+  private static final int SEARCH_TIMEOUT_SECONDS
+    = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(SEARCH_TIMEOUT_MS));
+
+  private final ConnectionPool pool;
+  private final ConnectionPool readPool;
+  private final TransactionRunner runner;
+  private final FlightIndex flightIndex;
+  private final FlightCache flightCache = FlightCache.getInstance();
+  private final ExecutorService searchExecutor
+    = Executors.newCachedThreadPool(SessionManager.newThreadFactory("search"));
+
+  static {
+    Metrics.nameStatements(JdbcFlightStore.class);
+  }
+
+  JdbcFlightStore(ConnectionPool pool) throws SQLException {
+    this(pool, pool);
+  }
+
+  /**
+   * @param readPool where read-only calls go; may be {@code pool} itself
+   */
+  JdbcFlightStore(ConnectionPool pool, ConnectionPool readPool) throws SQLException {
+    this.pool = pool;
+    this.readPool = readPool;
+    this.runner = new TransactionRunner(pool, readPool,
+                                        TransactionRunner.readIsolationFromSystemProperties(),
+                                        TransactionRunner.RetryPolicy.fromSystemProperties());
+    if (USE_FLIGHT_INDEX) {
+      flightIndex = FlightIndex.getInstance(readPool);
+    } else {
+      flightIndex = null;
+    }
+    if (Boolean.getBoolean("flightapp.flight_cache_warm")) {
+      try (PooledConnection conn = readPool.borrow()) {
+        flightCache.warm(conn.connection());
+      }
+    }
+  }
+
+  @Override
+  public void clear() throws SQLException {
+    try (PooledConnection conn = pool.borrow()) {
+      Statement s = conn.createStatement();
+      s.executeUpdate("DELETE FROM ReservationLegs");
+      s.executeUpdate("DELETE FROM Reservations");
+      s.executeUpdate("DELETE FROM Users");
+      SeatInventory.clear(conn);
+      ReservationIdAllocator.reset(conn);
+    }
+  }
+
+  @Override
+  public byte[] hashedPassword(String username) throws SQLException {
+    return runner.readOnly("fetchUser", conn -> {
+      PreparedStatement fetchUserStmt = conn.prepare(FETCH_USER_SQL);
+      fetchUserStmt.setString(1, username);
+      try (ResultSet results = fetchUserStmt.executeQuery()) {
+        return results.next() ? results.getBytes("hashedPassword") : null;
+      }
+    });
+  }
+
+  @Override
+  public boolean createUser(String username, byte[] hashedPassword, int balance)
+    throws SQLException {
+    // A single INSERT is atomic on its own; if someone else takes the name in the meantime the
+    // primary key rejects it
+    return runner.autoCommit("create", conn -> {
+      PreparedStatement createUserStmt = conn.prepare(CREATE_USER_SQL);
+      createUserStmt.setString(1, username);
+      createUserStmt.setBytes(2, hashedPassword);
+      createUserStmt.setInt(3, balance);
+      return createUserStmt.executeUpdate() == 1;
+    });
+  }
+
+  @Override
+  public List<Itinerary> search(String originCity, String destinationCity, int maxStops,
+                                Itinerary.Ranking ranking, int dayOfMonth, int limit)
+    throws SQLException {
+    if (flightIndex != null) {
+      return flightIndex.search(originCity, destinationCity, maxStops, ranking, dayOfMonth,
+                                limit);
+    }
+    if (maxStops > 1) {
+      // There is no SQL for longer itineraries; the index is loaded on first use instead
+      return FlightIndex.getInstance(readPool)
+        .search(originCity, destinationCity, maxStops, ranking, dayOfMonth, limit);
+    }
+    switch (ranking) {
+      case PRICE:
+        return searchDatabaseByPrice(originCity, destinationCity, maxStops == 0, dayOfMonth,
+                                     limit);
+      case PARETO:
+        return searchDatabasePareto(originCity, destinationCity, maxStops == 0, dayOfMonth,
+                                    limit);
+      default:
+        return searchDatabase(originCity, destinationCity, maxStops == 0, dayOfMonth, limit);
+    }
+  }
+
+  /**
+   * Searches with ONE_HOP_BY_PRICE_SQL and, for indirect searches, TWO_HOP_BY_PRICE_SQL, each
+   * returning only its cheapest {@code numberOfItineraries} rows, and merges them by price.
+   */
+  private List<Itinerary> searchDatabaseByPrice(String originCity, String destinationCity,
+                                                boolean directFlight, int dayOfMonth,
+                                                int numberOfItineraries) throws SQLException {
+    return runner.readOnly("search", conn -> {
+      List<TopKMerger.Source<Itinerary>> sources = new ArrayList<>(2);
+      try (ResultSet oneHopResults = querySearch(conn, ONE_HOP_BY_PRICE_SQL, originCity,
+                                                 destinationCity, dayOfMonth,
+                                                 numberOfItineraries);
+           ResultSet twoHopResults = directFlight ? null
+             : querySearch(conn, TWO_HOP_BY_PRICE_SQL, originCity, destinationCity, dayOfMonth,
+                           numberOfItineraries)) {
+        sources.add(directSource(oneHopResults));
+        if (twoHopResults != null) {
+          sources.add(oneStopSource(twoHopResults));
+        }
+        return TopKMerger.merge(sources, numberOfItineraries, Itinerary.BY_PRICE);
+      }
+    });
+  }
+
+  /**
+   * Searches with PARETO_SQL, which finds the front on the server and returns only its first
+   * {@code numberOfItineraries} itineraries.
+   */
+  private List<Itinerary> searchDatabasePareto(String originCity, String destinationCity,
+                                               boolean directFlight, int dayOfMonth,
+                                               int numberOfItineraries) throws SQLException {
+    return runner.readOnly("search", conn -> {
+      PreparedStatement paretoStmt = conn.prepare(PARETO_SQL);
+      paretoStmt.setQueryTimeout(SEARCH_TIMEOUT_SECONDS);
+      paretoStmt.setString(1, originCity);
+      paretoStmt.setString(2, destinationCity);
+      paretoStmt.setInt(3, dayOfMonth);
+      paretoStmt.setInt(4, directFlight ? 1 : 0);
+      paretoStmt.setString(5, originCity);
+      paretoStmt.setString(6, destinationCity);
+      paretoStmt.setInt(7, dayOfMonth);
+      paretoStmt.setInt(8, numberOfItineraries);
+
+      List<Itinerary> front = new ArrayList<>();
+      try (ResultSet results = paretoStmt.executeQuery()) {
+        while (results.next()) {
+          Flight f1 = readFlight(results, "f1_");
+          results.getInt("f2_fid");
+          front.add(results.wasNull() ? new Itinerary(f1)
+                      : new Itinerary(f1, readFlight(results, "f2_")));
+        }
+      }
+      return front;
+    });
+  }
+
+  @Override
+  public List<List<Itinerary>> searchDays(String originCity, String destinationCity, int maxStops,
+                                          int firstDay, int lastDay, int limit)
+    throws SQLException {
+    if (flightIndex != null) {
+      return flightIndex.searchDays(originCity, destinationCity, maxStops, firstDay, lastDay,
+                                    limit);
+    }
+    if (maxStops > 1) {
+      return FlightIndex.getInstance(readPool)
+        .searchDays(originCity, destinationCity, maxStops, firstDay, lastDay, limit);
+    }
+    return searchDatabaseDays(originCity, destinationCity, maxStops == 0, firstDay, lastDay,
+                              limit);
+  }
+
+  /**
+   * Searches a range of days with one ONE_HOP_DAYS_SQL and, for indirect searches, one
+   * TWO_HOP_DAYS_SQL query, which rank the rows of every day on the server, rather than running
+   * a separate search per day. Each day's direct and one-stop results are then merged as in
+   * {@link #searchDatabase}.
+   */
+  private List<List<Itinerary>> searchDatabaseDays(String originCity, String destinationCity,
+                                                   boolean directFlight, int firstDay,
+                                                   int lastDay, int numberOfItineraries)
+    throws SQLException {
+    return runner.readOnly("search", conn -> {
+      List<List<Itinerary>> direct;
+      try (ResultSet results = queryDays(conn, ONE_HOP_DAYS_SQL, originCity, destinationCity,
+                                         firstDay, lastDay, numberOfItineraries)) {
+        direct = byDay(directSource(results), firstDay, lastDay);
+      }
+      if (directFlight) {
+        return direct;
+      }
+
+      List<List<Itinerary>> oneStop;
+      try (ResultSet results = queryDays(conn, TWO_HOP_DAYS_SQL, originCity, destinationCity,
+                                         firstDay, lastDay, numberOfItineraries)) {
+        oneStop = byDay(oneStopSource(results), firstDay, lastDay);
+      }
+      List<List<Itinerary>> merged = new ArrayList<>(direct.size());
+      for (int i = 0; i < direct.size(); ++i) {
+        merged.add(TopKMerger.merge(List.of(TopKMerger.of(direct.get(i)),
+                                            TopKMerger.of(oneStop.get(i))),
+                                    numberOfItineraries));
+      }
+      return merged;
+    });
+  }
+
+  private static ResultSet queryDays(PooledConnection conn, String sql, String originCity,
+                                     String destinationCity, int firstDay, int lastDay,
+                                     int numberOfItineraries) throws SQLException {
+    PreparedStatement stmt = conn.prepare(sql);
+    stmt.setQueryTimeout(SEARCH_TIMEOUT_SECONDS);
+    stmt.setString(1, originCity);
+    stmt.setString(2, destinationCity);
+    stmt.setInt(3, firstDay);
+    stmt.setInt(4, lastDay);
+    stmt.setInt(5, numberOfItineraries);
+    return stmt.executeQuery();
+  }
+
+  /**
+   * Splits the itineraries of {@code source} by the day of their first flight.
+   */
+  private static List<List<Itinerary>> byDay(TopKMerger.Source<Itinerary> source, int firstDay,
+                                             int lastDay) throws SQLException {
+    List<List<Itinerary>> days = new ArrayList<>(lastDay - firstDay + 1);
+    for (int day = firstDay; day <= lastDay; ++day) {
+      days.add(new ArrayList<>());
+    }
+    for (Itinerary itn = source.next(); itn != null; itn = source.next()) {
+      days.get(itn.leg(0).dayOfMonth - firstDay).add(itn);
+    }
+    return days;
+  }
+
+  /**
+   * Searches with ONE_HOP_SQL and, for indirect searches, TWO_HOP_SQL. Both queries are already
+   * ordered by total time, so their rows are merged as they are read.
+   *
+   * Unless -Dflightapp.parallel_search=false, the two queries of an indirect search run at the
+   * same time on separate pooled connections, so the search takes as long as the slower query
+   * rather than the sum of both. Otherwise they share one connection and neither cursor is
+   * advanced past the last itinerary that is kept.
+   */
+  private List<Itinerary> searchDatabase(String originCity, String destinationCity,
+                                         boolean directFlight, int dayOfMonth,
+                                         int numberOfItineraries) throws SQLException {
+    if (!directFlight && PARALLEL_SEARCH) {
+      return searchDatabaseParallel(originCity, destinationCity, dayOfMonth,
+                                    numberOfItineraries);
+    }
+
+    return runner.readOnly("search", conn -> {
+      List<TopKMerger.Source<Itinerary>> sources = new ArrayList<>(2);
+      try (ResultSet oneHopResults = queryDirect(conn, originCity, destinationCity, dayOfMonth,
+                                                 numberOfItineraries);
+           ResultSet twoHopResults = directFlight ? null
+             : queryOneStop(conn, originCity, destinationCity, dayOfMonth,
+                            numberOfItineraries)) {
+        sources.add(directSource(oneHopResults));
+        if (twoHopResults != null) {
+          sources.add(oneStopSource(twoHopResults));
+        }
+        return TopKMerger.merge(sources, numberOfItineraries);
+      }
+    });
+  }
+
+  /**
+   * Runs the direct and one-stop queries concurrently. If either has not finished within
+   * -Dflightapp.search_timeout_ms, both are cancelled and the search fails.
+   */
+  private List<Itinerary> searchDatabaseParallel(String originCity, String destinationCity,
+                                                 int dayOfMonth, int numberOfItineraries)
+    throws SQLException {
+    Future<List<Itinerary>> direct = searchExecutor.submit(Metrics.propagate(
+      () -> runner.readOnly("search", conn -> {
+        try (ResultSet results = queryDirect(conn, originCity, destinationCity, dayOfMonth,
+                                             numberOfItineraries)) {
+          return TopKMerger.merge(List.of(directSource(results)), numberOfItineraries);
+        }
+      })));
+    Future<List<Itinerary>> oneStop = searchExecutor.submit(Metrics.propagate(
+      () -> runner.readOnly("search", conn -> {
+        try (ResultSet results = queryOneStop(conn, originCity, destinationCity, dayOfMonth,
+                                              numberOfItineraries)) {
+          return TopKMerger.merge(List.of(oneStopSource(results)), numberOfItineraries);
+        }
+      })));
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SEARCH_TIMEOUT_MS);
+    try {
+      List<Itinerary> directResults = awaitSearch(direct, deadline);
+      List<Itinerary> oneStopResults = awaitSearch(oneStop, deadline);
+      return TopKMerger.merge(List.of(TopKMerger.of(directResults),
+                                      TopKMerger.of(oneStopResults)), numberOfItineraries);
+    } finally {
+      // No-ops once both have finished; otherwise this stops the slow leg from holding its
+      // connection any longer than the statement's query timeout
+      direct.cancel(true);
+      oneStop.cancel(true);
+    }
+  }
+
+  private static List<Itinerary> awaitSearch(Future<List<Itinerary>> leg, long deadline)
+    throws SQLException {
+    try {
+      return leg.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException ex) {
+      throw new SQLTimeoutException("Search timed out", ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while searching", ex);
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof SQLException) {
+        throw (SQLException) ex.getCause();
+      }
+      throw new SQLException(ex.getCause());
+    }
+  }
+
+  // Runs one of the single-day search queries, which all take (limit, origin, dest, day)
+  private static ResultSet querySearch(PooledConnection conn, String sql, String originCity,
+                                       String destinationCity, int dayOfMonth,
+                                       int numberOfItineraries) throws SQLException {
+    PreparedStatement stmt = conn.prepare(sql);
+    stmt.setQueryTimeout(SEARCH_TIMEOUT_SECONDS);
+    stmt.setInt(1, numberOfItineraries);
+    stmt.setString(2, originCity);
+    stmt.setString(3, destinationCity);
+    stmt.setInt(4, dayOfMonth);
+    return stmt.executeQuery();
+  }
+
+  private static ResultSet queryDirect(PooledConnection conn, String originCity,
+                                       String destinationCity, int dayOfMonth,
+                                       int numberOfItineraries) throws SQLException {
+    return querySearch(conn, ONE_HOP_SQL, originCity, destinationCity, dayOfMonth,
+                       numberOfItineraries);
+  }
+
+  private static ResultSet queryOneStop(PooledConnection conn, String originCity,
+                                        String destinationCity, int dayOfMonth,
+                                        int numberOfItineraries) throws SQLException {
+    return querySearch(conn, TWO_HOP_SQL, originCity, destinationCity, dayOfMonth,
+                       numberOfItineraries);
+  }
+
+  private static TopKMerger.Source<Itinerary> directSource(ResultSet results) {
+    return () -> results.next() ? new Itinerary(readFlight(results, "")) : null;
+  }
+
+  private static TopKMerger.Source<Itinerary> oneStopSource(ResultSet results) {
+    return () -> results.next()
+      ? new Itinerary(readFlight(results, "f1_"), readFlight(results, "f2_")) : null;
+  }
+
+  /**
+   * Reads one flight from the current row, using columns named {@code prefix + column}.
+   */
+  private static Flight readFlight(ResultSet results, String prefix) throws SQLException {
+    return new Flight(results.getInt(prefix + "fid"), results.getInt(prefix + "day_of_month"),
+                      results.getString(prefix + "carrier_id"),
+                      results.getInt(prefix + "flight_num"),
+                      results.getString(prefix + "origin_city"),
+                      results.getString(prefix + "dest_city"),
+                      results.getInt(prefix + "actual_time"), results.getInt(prefix + "capacity"),
+                      results.getInt(prefix + "price"));
+  }
+
+  /**
+   * Books every itinerary in one transaction and a fixed number of round trips, however many
+   * itineraries and seats there are: one same-day check for all of the days, one MERGE for the
+   * seats on all of the flights, one update claiming all of the IDs and one batch of inserts.
+   */
+  @Override
+  public int bookAll(String username, List<Itinerary> itineraries, int seats)
+    throws SQLException {
+    if (itineraries.isEmpty() || seats <= 0) {
+      return BOOK_FAILED;
+    }
+    StringBuilder days = new StringBuilder();
+    List<Integer> fids = new ArrayList<>();
+    for (int i = 0; i < itineraries.size(); ++i) {
+      Itinerary itn = itineraries.get(i);
+      for (int j = 0; j < i; ++j) {
+        if (itineraries.get(j).leg(0).dayOfMonth == itn.leg(0).dayOfMonth) {
+          return BOOK_SAME_DAY;
+        }
+      }
+      days.append((i == 0) ? "" : ",").append(itn.leg(0).dayOfMonth);
+      for (int leg = 0; leg < itn.getNumFlights(); ++leg) {
+        fids.add(itn.leg(leg).fid);
+      }
+    }
+
+    return runner.inTransaction("book", conn -> {
+      PreparedStatement noOtherFlightsStmt = conn.prepare(NO_OTHER_FLIGHTS_SQL);
+      noOtherFlightsStmt.setString(1, username);
+      noOtherFlightsStmt.setString(2, days.toString());
+      try (ResultSet results = noOtherFlightsStmt.executeQuery()) {
+        if (results.next()) {
+          conn.rollbackTransaction();
+          return BOOK_SAME_DAY;
+        }
+      }
+
+      if (!SeatInventory.reserve(conn, seats,
+                                 fids.stream().mapToInt(Integer::intValue).toArray())) {
+        conn.rollbackTransaction();
+        return BOOK_FAILED;
+      }
+
+      // Claimed last so the sequence row stays locked for as short a time as possible
+      int firstId = ReservationIdAllocator.next(conn, itineraries.size());
+
+      PreparedStatement stmt = conn.prepare(CREATE_RESERVATION_SQL);
+      PreparedStatement legStmt = null;
+      for (int i = 0; i < itineraries.size(); ++i) {
+        Itinerary itn = itineraries.get(i);
+        stmt.setInt(1, firstId + i);
+        stmt.setString(2, username);
+        stmt.setInt(3, itn.leg(0).fid);
+        if (itn.isDirect()) {
+          stmt.setNull(4, Types.INTEGER);
+        } else {
+          stmt.setInt(4, itn.leg(1).fid);
+        }
+        stmt.setInt(5, seats);
+        stmt.addBatch();
+
+        for (int leg = 2; leg < itn.getNumFlights(); ++leg) {
+          if (legStmt == null) {
+            legStmt = conn.prepare(CREATE_RESERVATION_LEG_SQL);
+          }
+          legStmt.setInt(1, firstId + i);
+          legStmt.setInt(2, leg);
+          legStmt.setInt(3, itn.leg(leg).fid);
+          legStmt.addBatch();
+        }
+      }
+
+      for (int count : stmt.executeBatch()) {
+        if (count != 1) {
+          conn.rollbackTransaction();
+          return BOOK_FAILED;
+        }
+      }
+      if (legStmt != null) {
+        legStmt.executeBatch();
+      }
+      conn.commitTransaction();
+      return firstId;
+    });
+  }
+
+  @Override
+  public Payment pay(String username, int reservationId) throws SQLException {
+    // The statement manages its own transaction, so there is no separate commit round trip
+    return runner.autoCommit("pay", conn -> {
+      PreparedStatement payReservationStmt = conn.prepare(PAY_RESERVATION_SQL);
+      payReservationStmt.setInt(1, reservationId);
+      payReservationStmt.setString(2, username);
+      try (ResultSet results = payReservationStmt.executeQuery()) {
+        if (!results.next()) {
+          throw new SQLException("Payment returned no status");
+        }
+        return new Payment(results.getInt("status"), results.getInt("balance"),
+                           results.getLong("cost"));
+      }
+    });
+  }
+
+  @Override
+  public List<Reservation> reservations(String username) throws SQLException {
+    return runner.readOnly("reservations", conn -> {
+      PreparedStatement getReservationsStmt = conn.prepare(GET_RESERVATIONS_SQL);
+      getReservationsStmt.setString(1, username);
+
+      // One entry per reservation: res_id, paid, seats, then the fid of each leg
+      List<int[]> rows = new ArrayList<>();
+      int fidCount = 0;
+      try (ResultSet results = getReservationsStmt.executeQuery()) {
+        int[] row = null;
+        while (results.next()) {
+          int resId = results.getInt("res_id");
+          if (row == null || row[0] != resId) {
+            int fid2 = results.getInt("fid2");
+            row = results.wasNull()
+              ? new int[] {resId, results.getInt("paid"), results.getInt("seats"),
+                           results.getInt("fid1")}
+              : new int[] {resId, results.getInt("paid"), results.getInt("seats"),
+                           results.getInt("fid1"), fid2};
+            rows.add(row);
+            fidCount += row.length - 3;
+          }
+          int fidN = results.getInt("fid_n");
+          if (!results.wasNull()) {
+            row = Arrays.copyOf(row, row.length + 1);
+            row[row.length - 1] = fidN;
+            rows.set(rows.size() - 1, row);
+            ++fidCount;
+          }
+        }
+      }
+
+      // Any flights not cached yet are fetched together, so this stays at most two round trips
+      // however many reservations there are
+      int[] fids = new int[fidCount];
+      int next = 0;
+      for (int[] row : rows) {
+        for (int i = 3; i < row.length; ++i) {
+          fids[next++] = row[i];
+        }
+      }
+      flightCache.preload(conn, fids);
+
+      List<Reservation> reservations = new ArrayList<>(rows.size());
+      for (int[] row : rows) {
+        Flight[] legs = new Flight[row.length - 3];
+        for (int i = 0; i < legs.length; ++i) {
+          legs[i] = flightCache.get(conn, row[i + 3]);
+          if (legs[i] == null) {
+            throw new SQLException("Reservation " + row[0] + " refers to a missing flight");
+          }
+        }
+        reservations.add(new Reservation(row[0], row[1] != 0, new Itinerary(legs), row[2]));
+      }
+      return reservations;
+    });
+  }
+
+  @Override
+  public Map<String, TransactionRunner.Stats> transactionStats() {
+    return runner.stats();
+  }
+}
@@ -0,0 +1,97 @@
+package flightapp;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent latency histogram with HDR-style log-linear buckets.
+ *
+ * Values are bucketed by their power of two, and each power of two is split into
+ * {@code 2^SUB_BUCKET_BITS} linear sub-buckets, so any recorded value is reported within
+ * 1 / 2^SUB_BUCKET_BITS (under 1%) of its true value, from 1 microsecond up to hours, in a fixed
+ * few kilobytes. Recording is a single atomic increment and is safe from any number of threads.
+ */
+final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAGNITUDES = 64 - SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(MAGNITUDES * SUB_BUCKETS);
+  private final LongAdder total = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  /**
+   * Records one latency, in microseconds. Negative values are recorded as zero.
+   */
+  void record(long micros) {
+    long value = Math.max(0, micros);
+    counts.incrementAndGet(bucketOf(value));
+    total.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  long count() {
+    return total.sum();
+  }
+
+  long maxMicros() {
+    return max.get();
+  }
+
+  double meanMicros() {
+    long n = total.sum();
+    return (n == 0) ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   *
+   * @return the smallest recorded latency that at least {@code percentile}% of the recorded
+   *         latencies are no greater than, rounded up to its bucket
+   */
+  long percentileMicros(double percentile) {
+    long n = total.sum();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+    long seen = 0;
+    for (int bucket = 0; bucket < counts.length(); ++bucket) {
+      seen += counts.get(bucket);
+      if (seen >= rank) {
+        return Math.min(highestValueIn(bucket), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * One-line summary: count, mean and the usual percentiles, in milliseconds.
+   */
+  String summary() {
+    return String.format(Locale.ROOT,
+                         "n=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f ms",
+                         count(), meanMicros() / 1000.0, percentileMicros(50) / 1000.0,
+                         percentileMicros(90) / 1000.0, percentileMicros(99) / 1000.0,
+                         percentileMicros(99.9) / 1000.0, maxMicros() / 1000.0);
+  }
+
+  // Values below SUB_BUCKETS map one-to-one onto the first magnitude; above that, magnitude m
+  // covers [2^(m + SUB_BUCKET_BITS - 1), 2^(m + SUB_BUCKET_BITS)) in the upper half of its
+  // sub-buckets
+  private static int bucketOf(long value) {
+    int magnitude = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+    int subBucket = (int) (value >>> magnitude);
+    return magnitude * SUB_BUCKETS + subBucket;
+  }
+
+  private static long highestValueIn(int bucket) {
+    int magnitude = bucket / SUB_BUCKETS;
+    long subBucket = bucket % SUB_BUCKETS;
+    return ((subBucket + 1) << magnitude) - 1;
+  }
+}
@@ -0,0 +1,380 @@
+package flightapp;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide counters and latency histograms for every transaction type and every SQL
+ * statement, published as MXBeans under {@code flightapp:type=Transaction} and
+ * {@code flightapp:type=Statement} and printed by the {@code stats} command.
+ *
+ * A transaction is measured from {@link #begin} until its scope is closed. While a scope is open
+ * on a thread, every statement execution, fetched row, commit, rollback and retry on that thread
+ * is charged to it, so the per-call round trip and row counts include the work done by helpers
+ * such as {@link SeatInventory} and {@link FlightCache}. Statements are named after the
+ * {@code *_SQL} constant that holds their text (see {@link #nameStatements}).
+ *
+ * Every counter is a {@link LongAdder} or a {@link LatencyHistogram}, so concurrent sessions
+ * never contend on a shared lock or cache line to record. Statement timing wraps the JDBC
+ * statements in dynamic proxies; -Dflightapp.metrics=false leaves them unwrapped and keeps only
+ * the per-transaction call counts and latencies.
+ */
+final class Metrics {
+  static final boolean ENABLED
+    = Boolean.parseBoolean(System.getProperty("flightapp.metrics", "true"));
+
+  private static final Metrics INSTANCE = new Metrics();
+  private static final ThreadLocal<TransactionMetrics> CURRENT = new ThreadLocal<>();
+  private static final Map<String, String> STATEMENT_NAMES = new ConcurrentHashMap<>();
+
+  public interface TransactionMetricsMXBean {
+    long getInvocations();
+    long getRoundTrips();
+    double getRoundTripsPerCall();
+    long getRowsFetched();
+    long getCommits();
+    long getRollbacks();
+    long getRetries();
+    long getDeadlocks();
+    double getMeanLatencyMicros();
+    long getP50LatencyMicros();
+    long getP99LatencyMicros();
+    long getMaxLatencyMicros();
+  }
+
+  public interface StatementMetricsMXBean {
+    long getExecutions();
+    long getErrors();
+    long getRowsFetched();
+    double getMeanLatencyMicros();
+    long getP50LatencyMicros();
+    long getP99LatencyMicros();
+    long getMaxLatencyMicros();
+  }
+
+  static final class TransactionMetrics implements TransactionMetricsMXBean {
+    final LongAdder invocations = new LongAdder();
+    final LongAdder roundTrips = new LongAdder();
+    final LongAdder rowsFetched = new LongAdder();
+    final LongAdder commits = new LongAdder();
+    final LongAdder rollbacks = new LongAdder();
+    final LongAdder retries = new LongAdder();
+    final LongAdder deadlocks = new LongAdder();
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    @Override public long getInvocations() { return invocations.sum(); }
+    @Override public long getRoundTrips() { return roundTrips.sum(); }
+    @Override public long getRowsFetched() { return rowsFetched.sum(); }
+    @Override public long getCommits() { return commits.sum(); }
+    @Override public long getRollbacks() { return rollbacks.sum(); }
+    @Override public long getRetries() { return retries.sum(); }
+    @Override public long getDeadlocks() { return deadlocks.sum(); }
+    @Override public double getMeanLatencyMicros() { return latency.meanMicros(); }
+    @Override public long getP50LatencyMicros() { return latency.percentileMicros(50); }
+    @Override public long getP99LatencyMicros() { return latency.percentileMicros(99); }
+    @Override public long getMaxLatencyMicros() { return latency.maxMicros(); }
+
+    @Override
+    public double getRoundTripsPerCall() {
+      long n = invocations.sum();
+      return (n == 0) ? 0 : (double) roundTrips.sum() / n;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT, "calls=%d trips/call=%.2f rows=%d commits=%d "
+                           + "rollbacks=%d retries=%d deadlocks=%d %s",
+                           getInvocations(), getRoundTripsPerCall(), getRowsFetched(),
+                           getCommits(), getRollbacks(), getRetries(), getDeadlocks(),
+                           latency.summary());
+    }
+  }
+
+  static final class StatementMetrics implements StatementMetricsMXBean {
+    final LongAdder errors = new LongAdder();
+    final LongAdder rowsFetched = new LongAdder();
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    @Override public long getExecutions() { return latency.count(); }
+    @Override public long getErrors() { return errors.sum(); }
+    @Override public long getRowsFetched() { return rowsFetched.sum(); }
+    @Override public double getMeanLatencyMicros() { return latency.meanMicros(); }
+    @Override public long getP50LatencyMicros() { return latency.percentileMicros(50); }
+    @Override public long getP99LatencyMicros() { return latency.percentileMicros(99); }
+    @Override public long getMaxLatencyMicros() { return latency.maxMicros(); }
+
+    @Override
+    public String toString() {
+      return "errors=" + getErrors() + " rows=" + getRowsFetched() + " " + latency.summary();
+    }
+  }
+
+  /**
+   * An open transaction measurement; closing it records the latency.
+   */
+  static final class Scope implements AutoCloseable {
+    private final TransactionMetrics metrics;
+    private final TransactionMetrics previous;
+    private final long start = System.nanoTime();
+
+    private Scope(TransactionMetrics metrics) {
+      this.metrics = metrics;
+      this.previous = CURRENT.get();
+      CURRENT.set(metrics);
+    }
+
+    @Override
+    public void close() {
+      metrics.latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+      if (previous == null) {
+        CURRENT.remove();
+      } else {
+        CURRENT.set(previous);
+      }
+    }
+  }
+
+  private final Map<String, TransactionMetrics> transactions = new ConcurrentHashMap<>();
+  private final Map<String, StatementMetrics> statements = new ConcurrentHashMap<>();
+
+  private Metrics() {
+  }
+
+  /**
+   * @return the process-wide metrics
+   */
+  static Metrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Starts measuring one call of {@code transaction} on this thread.
+   */
+  Scope begin(String transaction) {
+    TransactionMetrics metrics = transaction(transaction);
+    metrics.invocations.increment();
+    return new Scope(metrics);
+  }
+
+  /**
+   * @return the transaction being measured on this thread, or null
+   */
+  static TransactionMetrics current() {
+    return ENABLED ? CURRENT.get() : null;
+  }
+
+  /**
+   * Returns a task that charges its work to the transaction open on the calling thread, for work
+   * handed off to another thread.
+   */
+  static <T> Callable<T> propagate(Callable<T> task) {
+    TransactionMetrics owner = current();
+    if (owner == null) {
+      return task;
+    }
+    return () -> {
+      TransactionMetrics previous = CURRENT.get();
+      CURRENT.set(owner);
+      try {
+        return task.call();
+      } finally {
+        CURRENT.set(previous);
+      }
+    };
+  }
+
+  /**
+   * Names statements after the {@code private static final String *_SQL} constants of
+   * {@code owner}, e.g. ONE_HOP_SQL becomes ONE_HOP.
+   */
+  static void nameStatements(Class<?> owner) {
+    for (Field field : owner.getDeclaredFields()) {
+      int mods = field.getModifiers();
+      if (Modifier.isStatic(mods) && Modifier.isFinal(mods) && field.getType() == String.class
+          && field.getName().endsWith("_SQL")) {
+        try {
+          field.setAccessible(true);
+          String name = field.getName();
+          STATEMENT_NAMES.put((String) field.get(null), name.substring(0, name.length() - 4));
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+          // Unnamed statements are still measured, under their SQL text
+        }
+      }
+    }
+  }
+
+  /**
+   * Wraps a prepared statement so that its executions are timed and charged to the current
+   * transaction.
+   */
+  PreparedStatement instrument(PreparedStatement stmt, String sql) {
+    if (!ENABLED) {
+      return stmt;
+    }
+    StatementMetrics metrics = statement(STATEMENT_NAMES.getOrDefault(sql, abbreviate(sql)));
+    return (PreparedStatement) Proxy.newProxyInstance(
+      Metrics.class.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+      new StatementHandler(stmt, metrics));
+  }
+
+  /**
+   * Wraps an ad hoc statement; all of them are reported together as AD_HOC.
+   */
+  Statement instrument(Statement stmt) {
+    if (!ENABLED) {
+      return stmt;
+    }
+    return (Statement) Proxy.newProxyInstance(
+      Metrics.class.getClassLoader(), new Class<?>[] { Statement.class },
+      new StatementHandler(stmt, statement("AD_HOC")));
+  }
+
+  /**
+   * Counts a commit or rollback against the current transaction.
+   */
+  static void recordEnd(boolean committed) {
+    TransactionMetrics owner = current();
+    if (owner != null) {
+      (committed ? owner.commits : owner.rollbacks).increment();
+    }
+  }
+
+  /**
+   * Counts a retry of the current transaction.
+   */
+  static void recordRetry(boolean deadlock) {
+    TransactionMetrics owner = current();
+    if (owner != null) {
+      owner.retries.increment();
+      if (deadlock) {
+        owner.deadlocks.increment();
+      }
+    }
+  }
+
+  /**
+   * Multi-line report of every transaction and statement seen so far, for the stats command.
+   */
+  String report() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, TransactionMetrics> entry : new TreeMap<>(transactions).entrySet()) {
+      sb.append("transaction ").append(entry.getKey()).append(": ").append(entry.getValue())
+        .append("\n");
+    }
+    for (Map.Entry<String, StatementMetrics> entry : new TreeMap<>(statements).entrySet()) {
+      sb.append("statement ").append(entry.getKey()).append(": ").append(entry.getValue())
+        .append("\n");
+    }
+    return sb.toString();
+  }
+
+  private TransactionMetrics transaction(String name) {
+    TransactionMetrics metrics = transactions.get(name);
+    if (metrics == null) {
+      metrics = transactions.computeIfAbsent(name, k -> register("Transaction", k,
+                                                                 new TransactionMetrics()));
+    }
+    return metrics;
+  }
+
+  private StatementMetrics statement(String name) {
+    StatementMetrics metrics = statements.get(name);
+    if (metrics == null) {
+      metrics = statements.computeIfAbsent(name, k -> register("Statement", k,
+                                                               new StatementMetrics()));
+    }
+    return metrics;
+  }
+
+  private static <T> T register(String type, String name, T bean) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+        bean, new ObjectName("flightapp:type=" + type + ",name=" + ObjectName.quote(name)));
+    } catch (JMException ex) {
+      // Still counted and reported by the stats command, just not visible over JMX
+    }
+    return bean;
+  }
+
+  private static String abbreviate(String sql) {
+    String collapsed = sql.trim().replaceAll("\\s+", " ");
+    return (collapsed.length() <= 40) ? collapsed : collapsed.substring(0, 40) + "...";
+  }
+
+  /**
+   * Times execute* calls and counts the rows read from the result sets they return.
+   */
+  private static final class StatementHandler implements InvocationHandler {
+    private final Statement target;
+    private final StatementMetrics metrics;
+
+    StatementHandler(Statement target, StatementMetrics metrics) {
+      this.target = target;
+      this.metrics = metrics;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      boolean execute = method.getName().startsWith("execute");
+      if (!execute) {
+        Object result = call(method, target, args);
+        return (result instanceof ResultSet) ? countRows((ResultSet) result) : result;
+      }
+
+      TransactionMetrics owner = current();
+      if (owner != null) {
+        owner.roundTrips.increment();
+      }
+      long start = System.nanoTime();
+      try {
+        Object result = call(method, target, args);
+        return (result instanceof ResultSet) ? countRows((ResultSet) result) : result;
+      } catch (Throwable ex) {
+        metrics.errors.increment();
+        throw ex;
+      } finally {
+        metrics.latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+      }
+    }
+
+    private ResultSet countRows(ResultSet results) {
+      TransactionMetrics owner = current();
+      return (ResultSet) Proxy.newProxyInstance(
+        Metrics.class.getClassLoader(), new Class<?>[] { ResultSet.class }, (p, method, args) -> {
+          Object result = call(method, results, args);
+          if (Boolean.TRUE.equals(result) && method.getName().equals("next")) {
+            metrics.rowsFetched.increment();
+            if (owner != null) {
+              owner.rowsFetched.increment();
+            }
+          }
+          return result;
+        });
+    }
+
+    private static Object call(Method method, Object target, Object[] args) throws Throwable {
+      try {
+        return method.invoke(target, args);
+      } catch (InvocationTargetException ex) {
+        throw ex.getCause();
+      }
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package flightapp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs password hashing on a dedicated, bounded worker pool.
+ *
+ * PBKDF2 with 65,536 iterations is deliberately slow. Running it on session threads would let a
+ * burst of logins take every core away from searches and bookings, so all hashing goes through
+ * a fixed number of workers (one per core by default) with a bounded queue in front of them.
+ * When the queue is full, new requests are shed right away with a
+ * {@link RejectedExecutionException} rather than piling up behind the backlog.
+ *
+ * Callers must not hold a database transaction while waiting on a hash.
+ *
+ * Sizing can be overridden with -Dflightapp.hash_threads and -Dflightapp.hash_queue.
+ */
+final class PasswordHasher {
+  private static final PasswordHasher INSTANCE
+    = new PasswordHasher(Integer.getInteger("flightapp.hash_threads",
+                                            Runtime.getRuntime().availableProcessors()),
+                         Integer.getInteger("flightapp.hash_queue", 256));
+
+  private final ThreadPoolExecutor executor;
+
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  PasswordHasher(int threads, int queueCapacity) {
+    AtomicLong count = new AtomicLong();
+    executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<>(queueCapacity), r -> {
+                                        Thread t = new Thread(r, "password-hasher-"
+                                                              + count.incrementAndGet());
+                                        t.setDaemon(true);
+                                        return t;
+                                      }, new ThreadPoolExecutor.AbortPolicy());
+    executor.prestartAllCoreThreads();
+  }
+
+  /**
+   * @return the process-wide hasher
+   */
+  static PasswordHasher getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @see PasswordUtils#hashPassword(String)
+   * @throws RejectedExecutionException if the hashing queue is full
+   */
+  byte[] hashPassword(String password) {
+    return run(() -> PasswordUtils.hashPassword(password));
+  }
+
+  /**
+   * @see PasswordUtils#plaintextMatchesHash(String, byte[])
+   * @throws RejectedExecutionException if the hashing queue is full
+   */
+  boolean plaintextMatchesHash(String plaintext, byte[] saltedHashed) {
+    return run(() -> PasswordUtils.plaintextMatchesHash(plaintext, saltedHashed));
+  }
+
+  /**
+   * @return the number of hash requests waiting for a worker
+   */
+  int queueDepth() {
+    return executor.getQueue().size();
+  }
+
+  long completedCount() {
+    return completed.sum();
+  }
+
+  long rejectedCount() {
+    return rejected.sum();
+  }
+
+  /**
+   * @return mean time a hash spent on a worker, in microseconds
+   */
+  double meanLatencyMicros() {
+    long n = completed.sum();
+    return (n == 0) ? 0.0 : totalNanos.sum() / 1000.0 / n;
+  }
+
+  double maxLatencyMicros() {
+    return maxNanos.get() / 1000.0;
+  }
+
+  private <T> T run(Callable<T> task) {
+    Future<T> future;
+    try {
+      future = executor.submit(() -> {
+        long start = System.nanoTime();
+        try {
+          return task.call();
+        } finally {
+          record(System.nanoTime() - start);
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      rejected.increment();
+      throw ex;
+    }
+
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return future.get();
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause);
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void record(long nanos) {
+    completed.increment();
+    totalNanos.add(nanos);
+    maxNanos.accumulateAndGet(nanos, Math::max);
+  }
+}
@@ -50,13 +50,24 @@ public class PasswordUtils {
   private static final int KEY_LENGTH = 128;
   private static final int SALT_LENGTH = 16;
 
+  // Both are expensive to create, so each thread keeps its own; neither is shared because
+  // SecretKeyFactory is not thread-safe and a shared SecureRandom serializes its callers
+  private static final ThreadLocal<SecureRandom> RANDOM
+    = ThreadLocal.withInitial(SecureRandom::new);
+  private static final ThreadLocal<SecretKeyFactory> FACTORY = ThreadLocal.withInitial(() -> {
+    try {
+      return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  });
+
   /**
    * Generate a small bit of randomness to serve as a password "salt"
    */
   static byte[] generateSalt() {
-    SecureRandom random = new SecureRandom();
     byte[] salt = new byte[SALT_LENGTH];
-    random.nextBytes(salt);
+    RANDOM.get().nextBytes(salt);
     return salt;
   }
 
@@ -71,13 +82,9 @@ public class PasswordUtils {
                                   HASH_STRENGTH, KEY_LENGTH * 8 /* length in bits */);
 
     // Hash the whole thing
-    SecretKeyFactory factory = null;
-    byte[] hash = null; 
     try {
-      factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-      hash = factory.generateSecret(spec).getEncoded();
-      return hash;
-    } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
+      return FACTORY.get().generateSecret(spec).getEncoded();
+    } catch (InvalidKeySpecException ex) {
       throw new IllegalStateException();
     }
   }
@@ -0,0 +1,123 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A connection on loan from a {@link ConnectionPool}, together with its prepared statements.
+ *
+ * Only the borrowing thread may use it. Closing it returns it to the pool; a transaction that is
+ * still open at that point is rolled back first.
+ *
+ * Read-only work may run at a weaker isolation level than the one the connection was opened
+ * with. The level is only changed when the next piece of work needs a different one, so a
+ * connection that serves only reads, or only writes, never pays for the switch.
+ */
+final class PooledConnection implements AutoCloseable {
+  private final ConnectionPool pool;
+  private final Connection conn;
+  private final Map<String, PreparedStatement> statements = new HashMap<>();
+  // The level the connection was opened with, which writes use, and the level it is in now;
+  // both -1 until the level is first changed
+  private int defaultIsolation = -1;
+  private int isolation = -1;
+
+  PooledConnection(ConnectionPool pool, Connection conn) {
+    this.pool = pool;
+    this.conn = conn;
+  }
+
+  /**
+   * Returns the cached statement for {@code sql}, preparing it on first use.
+   */
+  PreparedStatement prepare(String sql) throws SQLException {
+    PreparedStatement stmt = statements.get(sql);
+    if (stmt == null) {
+      stmt = Metrics.getInstance().instrument(conn.prepareStatement(sql), sql);
+      statements.put(sql, stmt);
+    }
+    return stmt;
+  }
+
+  Statement createStatement() throws SQLException {
+    return Metrics.getInstance().instrument(conn.createStatement());
+  }
+
+  Connection connection() {
+    return conn;
+  }
+
+  /**
+   * Switches to {@code level} for the work that follows, unless the connection is already in it.
+   * Must be called outside a transaction.
+   */
+  void useIsolation(int level) throws SQLException {
+    if (isolation < 0) {
+      isolation = defaultIsolation = conn.getTransactionIsolation();
+    }
+    if (level != isolation) {
+      conn.setTransactionIsolation(level);
+      isolation = level;
+    }
+  }
+
+  /**
+   * Switches back to the level the connection was opened with, if it was changed.
+   */
+  void useDefaultIsolation() throws SQLException {
+    if (isolation != defaultIsolation) {
+      useIsolation(defaultIsolation);
+    }
+  }
+
+  void beginTransaction() throws SQLException {
+    conn.setAutoCommit(false);
+  }
+
+  void commitTransaction() throws SQLException {
+    conn.commit();
+    conn.setAutoCommit(true);
+    Metrics.recordEnd(true);
+  }
+
+  void rollbackTransaction() throws SQLException {
+    conn.rollback();
+    conn.setAutoCommit(true);
+    Metrics.recordEnd(false);
+  }
+
+  @Override
+  public void close() {
+    try {
+      if (!conn.getAutoCommit()) {
+        rollbackTransaction();
+      }
+      pool.release(this);
+    } catch (SQLException ex) {
+      pool.discard(this);
+    }
+  }
+
+  /**
+   * Closes the cached statements and the underlying connection; only the pool calls this.
+   */
+  void closePhysical() {
+    for (PreparedStatement stmt : statements.values()) {
+      try {
+        stmt.close();
+      } catch (SQLException ex) {
+        // The connection is going away, and closing it releases the statement too
+      }
+    }
+    statements.clear();
+    try {
+      conn.close();
+    } catch (SQLException ex) {
+      ex.printStackTrace();
+    }
+  }
+}
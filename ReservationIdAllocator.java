@@ -0,0 +1,59 @@
+package flightapp;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Hands out reservation IDs from the single-row ReservationIds sequence table.
+ *
+ * Each allocation is a single-row update, so it costs the same no matter how many
+ * reservations exist. The increment runs inside the caller's booking transaction: if the booking
+ * rolls back, so does the increment, which keeps IDs starting at 1 and increasing by exactly 1
+ * per successful booking. Concurrent bookers queue on the counter row instead of all reading the
+ * same COUNT(*) and colliding on the Reservations primary key, so callers should allocate as late
+ * as possible in the transaction to keep that row locked only briefly.
+ *
+ * IDs are deliberately not reserved in blocks ahead of time: an ID cached in one process and never
+ * used (a failed booking, a process exit) would leave a permanent gap, which the contract forbids.
+ * A booking that makes several reservations does claim them as one block, but inside its own
+ * transaction, so they are all used or all rolled back.
+ */
+final class ReservationIdAllocator {
+  private static final String NEXT_RESERVATION_IDS_SQL
+    = "UPDATE ReservationIds SET last_id = last_id + ? OUTPUT INSERTED.last_id";
+
+  private static final String RESET_RESERVATION_IDS_SQL
+    = "UPDATE ReservationIds SET last_id = 0";
+
+  static {
+    Metrics.nameStatements(ReservationIdAllocator.class);
+  }
+
+  private ReservationIdAllocator() {
+  }
+
+  /**
+   * Claims the next {@code count} reservation IDs in one update. Must be called inside the
+   * booking transaction.
+   *
+   * @return the first of the claimed IDs; the others follow it consecutively
+   */
+  static int next(PooledConnection conn, int count) throws SQLException {
+    PreparedStatement nextStmt = conn.prepare(NEXT_RESERVATION_IDS_SQL);
+    nextStmt.setInt(1, count);
+    try (ResultSet results = nextStmt.executeQuery()) {
+      if (!results.next()) {
+        throw new SQLException("ReservationIds has no counter row");
+      }
+      return results.getInt(1) - count + 1;
+    }
+  }
+
+  /**
+   * Restarts numbering at 1; used when the Reservations table is cleared.
+   */
+  static void reset(PooledConnection conn) throws SQLException {
+    conn.prepare(RESET_RESERVATION_IDS_SQL).executeUpdate();
+  }
+}
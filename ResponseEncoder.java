@@ -0,0 +1,221 @@
+package flightapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * {@link ResponseSink} that encodes each response as one frame of the {@link FlightServer}
+ * protocol, a 4-byte big-endian length followed by the response text in UTF-8, appended to a
+ * direct buffer that is reused for every response on a connection.
+ *
+ * Search results and reservations are written field by field, with numbers formatted straight
+ * into the buffer and city and carrier names copied from {@link SymbolTable#utf8}, so they never
+ * go through {@link Flight#toString} or a StringBuilder. The text is the same as
+ * {@link ResponseSink.Text} produces.
+ *
+ * Commands write responses from their session's thread while the server drains the buffer from
+ * its own, so every method synchronizes on the encoder.
+ */
+final class ResponseEncoder implements ResponseSink {
+  // A buffer grown past this for one large response is dropped once it has been drained
+  private static final int MAX_RETAINED_BYTES = 1 << 20;
+
+  private static final SymbolTable SYMBOLS = SymbolTable.getInstance();
+
+  private static final byte[] ITINERARY = ascii("Itinerary ");
+  private static final byte[] FLIGHTS = ascii(" flight(s), ");
+  private static final byte[] MINUTES = ascii(" minutes\n");
+  private static final byte[] RESERVATION = ascii("Reservation ");
+  private static final byte[] PAID_TRUE = ascii(" paid: true");
+  private static final byte[] PAID_FALSE = ascii(" paid: false");
+  private static final byte[] SEATS = ascii(" seats: ");
+  private static final byte[] ID = ascii("ID: ");
+  private static final byte[] DAY = ascii(" Day: ");
+  private static final byte[] CARRIER = ascii(" Carrier: ");
+  private static final byte[] NUMBER = ascii(" Number: ");
+  private static final byte[] ORIGIN = ascii(" Origin: ");
+  private static final byte[] DEST = ascii(" Dest: ");
+  private static final byte[] DURATION = ascii(" Duration: ");
+  private static final byte[] CAPACITY = ascii(" Capacity: ");
+  private static final byte[] PRICE = ascii(" Price: ");
+  // A name that was null when interned, printed the way string concatenation prints null
+  private static final byte[] NULL = ascii("null");
+
+  private final int initialCapacity;
+  // Always in write mode: the frames waiting to be sent run from 0 to position
+  private ByteBuffer buffer;
+  // Where the frame being written starts
+  private int frameStart;
+
+  ResponseEncoder(int initialCapacity) {
+    this.initialCapacity = initialCapacity;
+    this.buffer = ByteBuffer.allocateDirect(initialCapacity);
+  }
+
+  @Override
+  public synchronized void message(String text) {
+    beginFrame();
+    int length = text.length();
+    ensure(length);
+    for (int i = 0; i < length; ++i) {
+      char c = text.charAt(i);
+      if (c >= 0x80) {
+        // Rare: only user input such as a username can be outside ASCII
+        buffer.position(frameStart + 4);
+        put(text.getBytes(StandardCharsets.UTF_8));
+        break;
+      }
+      buffer.put((byte) c);
+    }
+    endFrame();
+  }
+
+  @Override
+  public synchronized void itineraries(List<Itinerary> itineraries) {
+    beginFrame();
+    for (int id = 0; id < itineraries.size(); ++id) {
+      Itinerary itn = itineraries.get(id);
+      put(ITINERARY);
+      putInt(id);
+      putAscii(':');
+      putAscii(' ');
+      putInt(itn.getNumFlights());
+      put(FLIGHTS);
+      putInt(itn.totalDuration);
+      put(MINUTES);
+      putLegs(itn);
+    }
+    endFrame();
+  }
+
+  @Override
+  public synchronized void reservations(List<FlightStore.Reservation> reservations) {
+    beginFrame();
+    for (FlightStore.Reservation r : reservations) {
+      put(RESERVATION);
+      putInt(r.id);
+      put(r.paid ? PAID_TRUE : PAID_FALSE);
+      if (r.seats > 1) {
+        put(SEATS);
+        putInt(r.seats);
+      }
+      putAscii(':');
+      putAscii('\n');
+      putLegs(r.itinerary);
+    }
+    endFrame();
+  }
+
+  /**
+   * Writes as much of the pending frames to {@code channel} as it takes without blocking.
+   *
+   * @return the number of bytes still pending
+   */
+  synchronized int writeTo(WritableByteChannel channel) throws IOException {
+    buffer.flip();
+    try {
+      channel.write(buffer);
+    } finally {
+      buffer.compact();
+    }
+    if (buffer.position() == 0 && buffer.capacity() > MAX_RETAINED_BYTES) {
+      buffer = ByteBuffer.allocateDirect(initialCapacity);
+    }
+    return buffer.position();
+  }
+
+  /**
+   * @return the number of bytes written but not yet sent
+   */
+  synchronized int pending() {
+    return buffer.position();
+  }
+
+  // Formats each leg like Flight#toString, one per line
+  private void putLegs(Itinerary itn) {
+    for (int i = 0; i < itn.getNumFlights(); ++i) {
+      Flight f = itn.leg(i);
+      put(ID);
+      putInt(f.fid);
+      put(DAY);
+      putInt(f.dayOfMonth);
+      put(CARRIER);
+      putName(f.carrier);
+      put(NUMBER);
+      putInt(f.flightNum);
+      put(ORIGIN);
+      putName(f.origin);
+      put(DEST);
+      putName(f.dest);
+      put(DURATION);
+      putInt(f.time);
+      put(CAPACITY);
+      putInt(f.capacity);
+      put(PRICE);
+      putInt(f.price);
+      putAscii('\n');
+    }
+  }
+
+  private void beginFrame() {
+    ensure(4);
+    frameStart = buffer.position();
+    buffer.position(frameStart + 4);
+  }
+
+  private void endFrame() {
+    buffer.putInt(frameStart, buffer.position() - frameStart - 4);
+  }
+
+  private void put(byte[] bytes) {
+    ensure(bytes.length);
+    buffer.put(bytes);
+  }
+
+  private void putName(int id) {
+    put(id < 0 ? NULL : SYMBOLS.utf8(id));
+  }
+
+  private void putAscii(char c) {
+    ensure(1);
+    buffer.put((byte) c);
+  }
+
+  // Formats value in decimal, writing the digits from the last one back
+  private void putInt(int value) {
+    ensure(11);
+    long n = value;
+    if (n < 0) {
+      buffer.put((byte) '-');
+      n = -n;
+    }
+    int digits = 1;
+    for (long rest = n / 10; rest > 0; rest /= 10) {
+      ++digits;
+    }
+    int end = buffer.position() + digits;
+    for (int pos = end - 1; pos >= buffer.position(); --pos) {
+      buffer.put(pos, (byte) ('0' + n % 10));
+      n /= 10;
+    }
+    buffer.position(end);
+  }
+
+  private void ensure(int bytes) {
+    if (buffer.remaining() >= bytes) {
+      return;
+    }
+    ByteBuffer grown
+      = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+    buffer.flip();
+    grown.put(buffer);
+    buffer = grown;
+  }
+
+  private static byte[] ascii(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+}
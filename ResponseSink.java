@@ -0,0 +1,70 @@
+package flightapp;
+
+import java.util.List;
+
+/**
+ * Where a command writes its response. Every command makes exactly one call on its sink, so an
+ * implementation can treat each call as one whole response.
+ *
+ * {@link Text} renders the response strings documented on {@link Query}. {@link ResponseEncoder}
+ * writes the same text as bytes straight into a network buffer, so search results and
+ * reservations, the long responses, never become strings at all.
+ */
+interface ResponseSink {
+  /**
+   * Responds with {@code text}, which ends with a newline.
+   */
+  void message(String text);
+
+  /**
+   * Responds with the results of a search, numbered from 0; there is at least one.
+   */
+  void itineraries(List<Itinerary> itineraries);
+
+  /**
+   * Responds with a user's reservations; there is at least one.
+   */
+  void reservations(List<FlightStore.Reservation> reservations);
+
+  /**
+   * Builds the response as a string.
+   */
+  final class Text implements ResponseSink {
+    private String text;
+
+    @Override
+    public void message(String text) {
+      this.text = text;
+    }
+
+    @Override
+    public void itineraries(List<Itinerary> itineraries) {
+      StringBuilder sb = new StringBuilder();
+      for (int id = 0; id < itineraries.size(); ++id) {
+        Itinerary itn = itineraries.get(id);
+        sb.append("Itinerary " + id + ": " + itn.getNumFlights() + " flight(s), "
+                  + itn.totalDuration + " minutes\n");
+        sb.append(itn);
+      }
+      text = sb.toString();
+    }
+
+    @Override
+    public void reservations(List<FlightStore.Reservation> reservations) {
+      StringBuilder sb = new StringBuilder();
+      for (FlightStore.Reservation r : reservations) {
+        sb.append("Reservation " + r.id + " paid: " + r.paid
+                  + ((r.seats > 1) ? " seats: " + r.seats : "") + ":\n");
+        sb.append(r.itinerary);
+      }
+      text = sb.toString();
+    }
+
+    /**
+     * @return the response, or null if nothing has been written
+     */
+    String text() {
+      return text;
+    }
+  }
+}
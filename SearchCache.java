@@ -0,0 +1,237 @@
+package flightapp;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide cache of search results, keyed by every search parameter.
+ *
+ * Entries are evicted least-recently-used once the cache holds {@code maxEntries} searches, and
+ * expire {@code ttlMillis} after they were computed. Flights are static, and the capacity that
+ * search prints is the flight's total capacity rather than its remaining seats, so bookings do not
+ * change a search result; the TTL only bounds how long a result can outlive a change to FLIGHTS.
+ *
+ * Concurrent misses on the same key share a single load: the first caller runs the query and
+ * the others wait for its result instead of all hitting the database.
+ *
+ * Sizing can be overridden with -Dflightapp.search_cache_size (0 disables the cache) and
+ * -Dflightapp.search_cache_ttl_ms.
+ */
+final class SearchCache {
+
+  /**
+   * Computes a search result on a miss.
+   */
+  @FunctionalInterface
+  interface Loader {
+    List<Itinerary> load() throws SQLException;
+  }
+
+  static final class Key {
+    final String originCity;
+    final String destinationCity;
+    final int maxStops;
+    final Itinerary.Ranking ranking;
+    final int dayOfMonth;
+    final int numberOfItineraries;
+
+    Key(String originCity, String destinationCity, int maxStops, Itinerary.Ranking ranking,
+        int dayOfMonth, int numberOfItineraries) {
+      this.originCity = originCity;
+      this.destinationCity = destinationCity;
+      this.maxStops = maxStops;
+      this.ranking = ranking;
+      this.dayOfMonth = dayOfMonth;
+      this.numberOfItineraries = numberOfItineraries;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return maxStops == other.maxStops && ranking == other.ranking
+        && dayOfMonth == other.dayOfMonth
+        && numberOfItineraries == other.numberOfItineraries
+        && originCity.equals(other.originCity) && destinationCity.equals(other.destinationCity);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(originCity, destinationCity, maxStops, ranking, dayOfMonth,
+                          numberOfItineraries);
+    }
+  }
+
+  private static final class Entry {
+    final List<Itinerary> itineraries;
+    final long expiresAt;
+
+    Entry(List<Itinerary> itineraries, long expiresAt) {
+      this.itineraries = itineraries;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private static final SearchCache INSTANCE
+    = new SearchCache(Integer.getInteger("flightapp.search_cache_size", 10_000),
+                      Long.getLong("flightapp.search_cache_ttl_ms", 60_000L));
+
+  private final int maxEntries;
+  private final long ttlMillis;
+
+  // Guarded by itself; iteration order is least recently used first
+  private final LinkedHashMap<Key, Entry> entries;
+  private final Map<Key, CompletableFuture<List<Itinerary>>> inFlight = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  SearchCache(int maxEntries, long ttlMillis) {
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+        return size() > SearchCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @return the process-wide cache
+   */
+  static SearchCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the cached result for {@code key}, or loads, caches and returns it. The returned list
+   * is unmodifiable and may be shared with other sessions.
+   */
+  List<Itinerary> get(Key key, Loader loader) throws SQLException {
+    if (maxEntries <= 0) {
+      return Collections.unmodifiableList(loader.load());
+    }
+
+    long now = System.currentTimeMillis();
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.expiresAt > now) {
+        hits.increment();
+        return entry.itineraries;
+      }
+    }
+    misses.increment();
+
+    CompletableFuture<List<Itinerary>> mine = new CompletableFuture<>();
+    CompletableFuture<List<Itinerary>> shared = inFlight.putIfAbsent(key, mine);
+    if (shared != null) {
+      return await(shared);
+    }
+
+    try {
+      List<Itinerary> itineraries = Collections.unmodifiableList(loader.load());
+      synchronized (entries) {
+        entries.put(key, new Entry(itineraries, System.currentTimeMillis() + ttlMillis));
+      }
+      mine.complete(itineraries);
+      return itineraries;
+    } catch (SQLException | RuntimeException ex) {
+      mine.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      inFlight.remove(key, mine);
+    }
+  }
+
+  /**
+   * @return the cached result for {@code key}, or null if there is none; never loads
+   */
+  List<Itinerary> getIfPresent(Key key) {
+    if (maxEntries <= 0) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.expiresAt > now) {
+        hits.increment();
+        return entry.itineraries;
+      }
+    }
+    misses.increment();
+    return null;
+  }
+
+  /**
+   * Caches a result computed outside {@link #get}, such as one day of a multi-day search.
+   *
+   * @return the cached, unmodifiable copy
+   */
+  List<Itinerary> put(Key key, List<Itinerary> itineraries) {
+    List<Itinerary> cached = Collections.unmodifiableList(itineraries);
+    if (maxEntries > 0) {
+      synchronized (entries) {
+        entries.put(key, new Entry(cached, System.currentTimeMillis() + ttlMillis));
+      }
+    }
+    return cached;
+  }
+
+  long hitCount() {
+    return hits.sum();
+  }
+
+  long missCount() {
+    return misses.sum();
+  }
+
+  int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  private static List<Itinerary> await(CompletableFuture<List<Itinerary>> future)
+    throws SQLException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return future.get();
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof SQLException) {
+        throw (SQLException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new SQLException(cause);
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
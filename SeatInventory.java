@@ -0,0 +1,63 @@
+package flightapp;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * Per-flight seat counters kept in the SeatInventory table.
+ *
+ * A row holds the number of seats booked on one flight and only exists once the flight has been
+ * booked at least once, so clearing reservations is a plain DELETE. The counters are updated in
+ * the same transaction as the Reservations insert, which makes every capacity check a primary
+ * key lookup on Flights and SeatInventory instead of an aggregate over all reservations.
+ */
+final class SeatInventory {
+  // Books the given number of seats on every flight in a comma-separated list of fids, if that
+  // many are still free. The number of rows it touches is the number of flights that had room,
+  // so the caller can tell if any was full. The list is a single parameter, so the statement
+  // text is the same however many flights a booking covers.
+  private static final String RESERVE_SEATS_SQL
+    = "MERGE SeatInventory WITH (HOLDLOCK) AS s"
+    + " USING (SELECT fid, capacity, ? AS seats FROM Flights"
+    + "         WHERE fid IN (SELECT CAST(value AS INT) FROM STRING_SPLIT(?, ','))) AS f"
+    + "    ON s.fid = f.fid"
+    + "  WHEN MATCHED AND s.booked + f.seats <= f.capacity"
+    + "       THEN UPDATE SET booked = s.booked + f.seats"
+    + "  WHEN NOT MATCHED BY TARGET AND f.capacity >= f.seats"
+    + "       THEN INSERT (fid, booked) VALUES (f.fid, f.seats);";
+
+  private static final String CLEAR_SEATS_SQL = "DELETE FROM SeatInventory";
+
+  static {
+    Metrics.nameStatements(SeatInventory.class);
+  }
+
+  private SeatInventory() {
+  }
+
+  /**
+   * Checks and books {@code seats} seats on each of {@code fids} in a single statement. Must be
+   * called inside the booking transaction, which has to be rolled back if this returns false.
+   *
+   * @param fids the flights of every itinerary being booked
+   *
+   * @return true if every flight had enough free seats
+   */
+  static boolean reserve(PooledConnection conn, int seats, int... fids) throws SQLException {
+    PreparedStatement reserveStmt = conn.prepare(RESERVE_SEATS_SQL);
+    reserveStmt.setInt(1, seats);
+    reserveStmt.setString(2, Arrays.stream(fids).mapToObj(Integer::toString)
+                               .collect(Collectors.joining(",")));
+    int flights = (int) Arrays.stream(fids).distinct().count();
+    return reserveStmt.executeUpdate() == flights;
+  }
+
+  /**
+   * Drops every counter; used when the Reservations table is cleared.
+   */
+  static void clear(PooledConnection conn) throws SQLException {
+    conn.prepare(CLEAR_SEATS_SQL).executeUpdate();
+  }
+}
@@ -0,0 +1,22 @@
+package flightapp;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State that belongs to one interactive session: who is logged in and what they last searched
+ * for. Sessions hold no database resources; connections are borrowed per transaction.
+ *
+ * A session is only ever used by one thread at a time.
+ */
+final class Session {
+  private static final AtomicLong NEXT_ID = new AtomicLong(1);
+
+  final long id = NEXT_ID.getAndIncrement();
+
+  // Logged-in username, or null
+  String currUser;
+
+  // Itineraries returned by the last search, indexed by itinerary ID
+  List<Itinerary> currSearch;
+}
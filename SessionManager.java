@@ -0,0 +1,111 @@
+package flightapp;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Runs many concurrent sessions inside one process.
+ *
+ * Every session gets its own single-threaded executor, so its commands run one at a time and in
+ * the order they were submitted, while different sessions run in parallel. Sessions only hold
+ * their {@link Session} state; database connections are borrowed from the shared pool by each
+ * transaction, so the number of sessions is not limited by the number of connections.
+ *
+ * Session threads are virtual threads when the JVM supports them (Java 21+), which lets
+ * thousands of mostly idle sessions share a handful of carrier threads. Older JVMs fall back to
+ * daemon platform threads.
+ */
+final class SessionManager implements AutoCloseable {
+  private final CommandDispatcher dispatcher;
+  private final ThreadFactory threadFactory = newThreadFactory("session");
+  private final Map<Long, ExecutorService> executors = new ConcurrentHashMap<>();
+
+  SessionManager(FlightTransactions transactions) {
+    this.dispatcher = new CommandDispatcher(transactions);
+  }
+
+  /**
+   * Starts a new session with nobody logged in.
+   */
+  Session open() {
+    Session session = new Session();
+    executors.put(session.id, Executors.newSingleThreadExecutor(threadFactory));
+    return session;
+  }
+
+  /**
+   * Queues a command, in the CLI's syntax, on the session's thread.
+   *
+   * @return the command's response, completed once the command has run
+   */
+  CompletableFuture<String> submit(Session session, String command) {
+    return submit(session, s -> dispatcher.execute(s, command));
+  }
+
+  /**
+   * Queues work for the session on its thread, in order with its commands.
+   *
+   * @return the work's result, completed once it has run
+   */
+  <T> CompletableFuture<T> submit(Session session, Function<Session, T> work) {
+    ExecutorService executor = executors.get(session.id);
+    if (executor == null) {
+      return CompletableFuture.failedFuture(
+        new IllegalStateException("Session " + session.id + " is closed"));
+    }
+    try {
+      return CompletableFuture.supplyAsync(() -> work.apply(session), executor);
+    } catch (RejectedExecutionException ex) {
+      return CompletableFuture.failedFuture(ex);
+    }
+  }
+
+  /**
+   * Ends a session once its queued commands have finished.
+   */
+  void close(Session session) {
+    ExecutorService executor = executors.remove(session.id);
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  int activeSessions() {
+    return executors.size();
+  }
+
+  @Override
+  public void close() {
+    for (ExecutorService executor : executors.values()) {
+      executor.shutdown();
+    }
+    executors.clear();
+  }
+
+  /**
+   * Returns a factory for virtual threads when the JVM has them, or for daemon platform threads
+   * named {@code prefix-N} otherwise.
+   */
+  static ThreadFactory newThreadFactory(String prefix) {
+    try {
+      // Thread.ofVirtual().factory(), looked up reflectively so this still builds on Java 17
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+        .getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException ex) {
+      AtomicLong count = new AtomicLong();
+      return r -> {
+        Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      };
+    }
+  }
+}
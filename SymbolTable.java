@@ -0,0 +1,91 @@
+package flightapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide dictionary of the city and carrier names in FLIGHTS, each interned to a small
+ * int.
+ *
+ * {@link Flight} stores these ints instead of strings, so every flight, cached row and session
+ * search result refers to a single copy of each name, which is only looked up again when the
+ * flight is formatted. There are a few hundred distinct names, so the table stays small and is
+ * never pruned.
+ *
+ * Each name is also kept encoded as UTF-8, for the network server to copy into its buffers.
+ *
+ * Lookups in both directions never block. A new name is added under the table's lock and
+ * published through {@code names} before its id is, so any thread holding an id can resolve it.
+ */
+final class SymbolTable {
+  private static final SymbolTable INSTANCE = new SymbolTable();
+
+  private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+  // Replaced, never shrunk, when it fills up; entries below size never change
+  private volatile String[] names = new String[256];
+  // Written before names, and replaced along with it
+  private volatile byte[][] encoded = new byte[256][];
+  // Guarded by this
+  private int size;
+
+  private SymbolTable() {
+  }
+
+  /**
+   * @return the process-wide table
+   */
+  static SymbolTable getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return the id of {@code name}, adding it if it is new; -1 for null
+   */
+  int intern(String name) {
+    if (name == null) {
+      return -1;
+    }
+    Integer id = ids.get(name);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      id = ids.get(name);
+      if (id == null) {
+        byte[][] grownEncoded = (size == encoded.length)
+          ? Arrays.copyOf(encoded, size * 2) : encoded;
+        grownEncoded[size] = name.getBytes(StandardCharsets.UTF_8);
+        encoded = grownEncoded;
+        String[] grown = (size == names.length) ? Arrays.copyOf(names, size * 2) : names;
+        grown[size] = name;
+        names = grown;
+        id = size++;
+        ids.put(name, id);
+      }
+      return id;
+    }
+  }
+
+  /**
+   * @return the name interned as {@code id}; null for -1
+   */
+  String name(int id) {
+    return (id < 0) ? null : names[id];
+  }
+
+  /**
+   * @return the name interned as {@code id} encoded as UTF-8, which must not be modified
+   */
+  byte[] utf8(int id) {
+    return encoded[id];
+  }
+
+  /**
+   * @return the number of names interned so far
+   */
+  synchronized int size() {
+    return size;
+  }
+}
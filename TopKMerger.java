@@ -0,0 +1,119 @@
+package flightapp;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges several individually sorted streams into the first K elements of their combined order.
+ *
+ * Only the current head of each stream is held in the heap, so the work is O(K log S) for S
+ * streams and a stream is never read past the point where it stops contributing. Nothing is
+ * materialized or sorted beyond the K results.
+ */
+final class TopKMerger {
+  // The merged list's initial capacity when some source cannot tell how long it is
+  private static final int UNKNOWN_SIZE_CAPACITY = 16;
+
+  private TopKMerger() {
+  }
+
+  /**
+   * A stream of elements in ascending order.
+   */
+  @FunctionalInterface
+  interface Source<T> {
+    /**
+     * @return the next element, or {@code null} once the stream is exhausted
+     */
+    T next() throws SQLException;
+
+    /**
+     * @return how many elements are left, or -1 if that is not known without reading them
+     */
+    default int size() {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns up to {@code k} of the smallest elements across {@code sources}, in ascending order.
+   * Ties between streams go to the stream that appears first in {@code sources}.
+   */
+  static <T extends Comparable<? super T>> List<T> merge(List<? extends Source<T>> sources, int k)
+    throws SQLException {
+    return merge(sources, k, Comparator.naturalOrder());
+  }
+
+  /**
+   * As {@link #merge(List, int)}, for streams sorted by {@code order}.
+   */
+  static <T> List<T> merge(List<? extends Source<T>> sources, int k, Comparator<? super T> order)
+    throws SQLException {
+    if (k <= 0) {
+      return new ArrayList<>();
+    }
+    // k is the user's num_itineraries, so it only bounds the capacity together with the inputs
+    long total = 0;
+    for (Source<T> source : sources) {
+      int size = source.size();
+      total += (size < 0) ? UNKNOWN_SIZE_CAPACITY : size;
+    }
+    List<T> merged = new ArrayList<>((int) Math.min(k, total));
+
+    // Ties go to the earlier source
+    PriorityQueue<Head<T>> heads = new PriorityQueue<>(Math.max(sources.size(), 1), (a, b) -> {
+      int cmp = order.compare(a.value, b.value);
+      return (cmp != 0) ? cmp : Integer.compare(a.source, b.source);
+    });
+    for (int i = 0; i < sources.size(); ++i) {
+      T first = sources.get(i).next();
+      if (first != null) {
+        heads.add(new Head<>(first, i));
+      }
+    }
+
+    while (merged.size() < k && !heads.isEmpty()) {
+      Head<T> head = heads.poll();
+      merged.add(head.value);
+      if (merged.size() < k) {
+        T next = sources.get(head.source).next();
+        if (next != null) {
+          heads.add(new Head<>(next, head.source));
+        }
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Builds a source over an already-sorted list.
+   */
+  static <T> Source<T> of(List<T> sorted) {
+    return new Source<T>() {
+      private int pos;
+
+      @Override
+      public T next() {
+        return (pos < sorted.size()) ? sorted.get(pos++) : null;
+      }
+
+      @Override
+      public int size() {
+        return sorted.size() - pos;
+      }
+    };
+  }
+
+  private static final class Head<T> {
+    final T value;
+    final int source;
+
+    Head(T value, int source) {
+      this.value = value;
+      this.source = source;
+    }
+  }
+}
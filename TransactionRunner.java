@@ -0,0 +1,269 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.SQLTransientException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs a unit of database work on a pooled connection, retrying it when it fails for a reason
+ * that is likely to go away on its own (deadlock victim, lock timeout, dropped connection).
+ *
+ * A dropped connection leaves it unknown whether work that had reached the server took effect,
+ * so after one only work that can safely run twice is retried: read-only work, or any work that
+ * failed before it started, while borrowing the connection. A payment or a new user could
+ * otherwise be applied twice.
+ *
+ * Retries are bounded by {@link RetryPolicy#maxAttempts} and spaced with exponential backoff and
+ * full jitter, so sessions that collided once don't immediately collide again. Each attempt gets
+ * a fresh connection; anything the work left uncommitted is rolled back when the connection goes
+ * back to the pool. Retry and deadlock counts are kept per transaction name.
+ *
+ * Work that only reads ({@link #readOnly}) can be sent to a separate pool, such as a readable
+ * secondary, and runs at -Dflightapp.read_isolation instead of the connection's own level:
+ * <ul>
+ *   <li>{@code read_committed} (the default) holds shared locks only while each row is read, and
+ *       none at all if the database has READ_COMMITTED_SNAPSHOT on;
+ *   <li>{@code snapshot} reads row versions and never waits for writers; the database needs
+ *       ALLOW_SNAPSHOT_ISOLATION on;
+ *   <li>{@code serializable} keeps the behavior of write transactions.
+ * </ul>
+ * Reads that span several statements rely on FLIGHTS never changing, so per-statement
+ * consistency is all they need.
+ */
+final class TransactionRunner {
+  // SQLServerConnection.TRANSACTION_SNAPSHOT, without depending on the driver at compile time
+  static final int TRANSACTION_SNAPSHOT = 0x1000;
+
+  private enum Mode { TRANSACTION, AUTO_COMMIT, READ_ONLY }
+
+  /**
+   * One attempt at the work. It may commit or roll back itself; an open transaction is rolled
+   * back once it returns or throws.
+   */
+  @FunctionalInterface
+  interface Work<T> {
+    T run(PooledConnection conn) throws SQLException;
+  }
+
+  /**
+   * How often and how patiently to retry.
+   */
+  static final class RetryPolicy {
+    final int maxAttempts;
+    final long baseDelayMillis;
+    final long maxDelayMillis;
+
+    RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+      if (maxAttempts < 1) {
+        throw new IllegalArgumentException("maxAttempts must be at least 1: " + maxAttempts);
+      }
+      this.maxAttempts = maxAttempts;
+      this.baseDelayMillis = baseDelayMillis;
+      this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Reads -Dflightapp.tx_max_attempts, -Dflightapp.tx_base_delay_ms and
+     * -Dflightapp.tx_max_delay_ms.
+     */
+    static RetryPolicy fromSystemProperties() {
+      return new RetryPolicy(Integer.getInteger("flightapp.tx_max_attempts", 5),
+                             Long.getLong("flightapp.tx_base_delay_ms", 5L),
+                             Long.getLong("flightapp.tx_max_delay_ms", 500L));
+    }
+
+    /**
+     * @return how long to wait before attempt {@code attempt + 1}, with full jitter
+     */
+    long backoffMillis(int attempt) {
+      long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+      return (ceiling <= 0) ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+  }
+
+  /**
+   * Counters for one transaction name.
+   */
+  static final class Stats {
+    final LongAdder invocations = new LongAdder();
+    final LongAdder retries = new LongAdder();
+    final LongAdder deadlocks = new LongAdder();
+    final LongAdder exhausted = new LongAdder();
+
+    @Override
+    public String toString() {
+      return "invocations=" + invocations.sum() + " retries=" + retries.sum()
+        + " deadlocks=" + deadlocks.sum() + " exhausted=" + exhausted.sum();
+    }
+  }
+
+  private final ConnectionPool pool;
+  private final ConnectionPool readPool;
+  private final int readIsolation;
+  private final RetryPolicy policy;
+  private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+  TransactionRunner(ConnectionPool pool, RetryPolicy policy) {
+    this(pool, pool, readIsolationFromSystemProperties(), policy);
+  }
+
+  /**
+   * @param readPool where {@link #readOnly} work runs; may be {@code pool} itself
+   * @param readIsolation the JDBC isolation level for read-only work
+   */
+  TransactionRunner(ConnectionPool pool, ConnectionPool readPool, int readIsolation,
+                    RetryPolicy policy) {
+    this.pool = pool;
+    this.readPool = readPool;
+    this.readIsolation = readIsolation;
+    this.policy = policy;
+  }
+
+  /**
+   * Reads -Dflightapp.read_isolation: {@code read_committed} (the default), {@code snapshot} or
+   * {@code serializable}.
+   */
+  static int readIsolationFromSystemProperties() {
+    String level = System.getProperty("flightapp.read_isolation", "read_committed");
+    switch (level.toLowerCase(Locale.ROOT)) {
+      case "read_committed":
+        return Connection.TRANSACTION_READ_COMMITTED;
+      case "snapshot":
+        return TRANSACTION_SNAPSHOT;
+      case "serializable":
+        return Connection.TRANSACTION_SERIALIZABLE;
+      default:
+        throw new IllegalArgumentException("Unknown flightapp.read_isolation: " + level);
+    }
+  }
+
+  /**
+   * Runs {@code work} inside a transaction.
+   *
+   * @param name the transaction type, used to group the retry counters
+   *
+   * @throws SQLException the last failure, if it was not transient or the retry budget ran out
+   */
+  <T> T inTransaction(String name, Work<T> work) throws SQLException {
+    return run(name, Mode.TRANSACTION, work);
+  }
+
+  /**
+   * Runs {@code work} in autocommit mode, for single statements that need no transaction.
+   */
+  <T> T autoCommit(String name, Work<T> work) throws SQLException {
+    return run(name, Mode.AUTO_COMMIT, work);
+  }
+
+  /**
+   * Runs {@code work}, which must not write, in autocommit mode on the read pool at the read
+   * isolation level.
+   */
+  <T> T readOnly(String name, Work<T> work) throws SQLException {
+    return run(name, Mode.READ_ONLY, work);
+  }
+
+  /**
+   * @return the counters for every transaction name seen so far
+   */
+  Map<String, Stats> stats() {
+    return stats;
+  }
+
+  private <T> T run(String name, Mode mode, Work<T> work) throws SQLException {
+    Stats counters = stats.computeIfAbsent(name, k -> new Stats());
+    counters.invocations.increment();
+
+    for (int attempt = 1; ; ++attempt) {
+      boolean started = false;
+      try (PooledConnection conn = (mode == Mode.READ_ONLY) ? readPool.borrow() : pool.borrow()) {
+        if (mode == Mode.READ_ONLY) {
+          conn.useIsolation(readIsolation);
+        } else {
+          conn.useDefaultIsolation();
+        }
+        if (mode == Mode.TRANSACTION) {
+          conn.beginTransaction();
+        }
+        started = true;
+        return work.run(conn);
+      } catch (SQLException ex) {
+        if (isDeadlock(ex)) {
+          counters.deadlocks.increment();
+        }
+        boolean retry = isTransient(ex)
+          || (isConnectionFailure(ex) && (!started || mode == Mode.READ_ONLY));
+        if (!retry) {
+          throw ex;
+        }
+        if (attempt >= policy.maxAttempts) {
+          counters.exhausted.increment();
+          throw ex;
+        }
+        counters.retries.increment();
+        Metrics.recordRetry(isDeadlock(ex));
+        sleep(policy.backoffMillis(attempt), ex);
+      }
+    }
+  }
+
+  private static void sleep(long millis, SQLException cause) throws SQLException {
+    if (millis <= 0) {
+      return;
+    }
+    try {
+      TimeUnit.MILLISECONDS.sleep(millis);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw cause;
+    }
+  }
+
+  static boolean isDeadlock(SQLException e) {
+    return e.getErrorCode() == 1205;
+  }
+
+  /**
+   * Errors that roll the work back, so it can always run again: deadlock victim (1205), lock
+   * request timeout (1222), the Azure SQL throttling codes and serialization failures (SQLSTATE
+   * 40001).
+   */
+  static boolean isTransient(SQLException e) {
+    switch (e.getErrorCode()) {
+      case 1205:
+      case 1222:
+      case 40501:
+      case 49918:
+      case 49919:
+      case 49920:
+        return true;
+      default:
+        break;
+    }
+    if ("40001".equals(e.getSQLState())) {
+      return true;
+    }
+    return e instanceof SQLTransientException && !isConnectionFailure(e);
+  }
+
+  /**
+   * Errors after which the connection is gone and the outcome of the work is unknown: broken
+   * connections (SQLSTATE class 08), the Azure SQL failover codes and timeouts.
+   */
+  static boolean isConnectionFailure(SQLException e) {
+    if (e.getErrorCode() == 40197 || e.getErrorCode() == 40613) {
+      return true;
+    }
+    String state = e.getSQLState();
+    return (state != null && state.startsWith("08"))
+      || e instanceof SQLTransientConnectionException || e instanceof SQLTimeoutException;
+  }
+}
@@ -0,0 +1,253 @@
+package flightapp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Benchmarks for the hot paths of the app.
+ *
+ * The in-JVM benchmarks (password hashing, itinerary sorting and formatting, the flight index
+ * and the top-K merge) run against a generated dataset and need nothing else. With
+ * {@code --memory} the transaction paths are benchmarked too, against an
+ * {@link InMemoryFlightStore} over the same dataset. With {@code --db <dbconn.properties>} they
+ * run end to end against that database instead; that needs FLIGHTS to be loaded there, and
+ * Users and Reservations are cleared before and after, just like the test harness does.
+ *
+ * Usage:
+ * <pre>
+ *   java -cp out:mssql-jdbc.jar flightapp.FlightBenchmarks [--filter substring]
+ *        [--memory | --db path] [--warmup-ms n] [--iteration-ms n] [--iterations n]
+ *        [--flights n] [--cities n]
+ *        [--origin city] [--dest city] [--day n]
+ * </pre>
+ */
+final class FlightBenchmarks {
+  private static final int SEARCH_RESULTS = 10;
+  private static final int GROUP_SEATS = 4;
+  private static final int PIPELINE_DEPTH = 16;
+
+  private final Microbench bench;
+  private final String filter;
+
+  private FlightBenchmarks(Microbench bench, String filter) {
+    this.bench = bench;
+    this.filter = filter;
+  }
+
+  public static void main(String[] args) throws Exception {
+    long warmupMillis = 2_000;
+    long iterationMillis = 1_000;
+    int iterations = 5;
+    int numFlights = 200_000;
+    int numCities = 300;
+    String filter = "";
+    String dbPath = null;
+    boolean memory = false;
+    String origin = null;
+    String dest = null;
+    int day = 1;
+
+    for (int i = 0; i < args.length; ++i) {
+      String value = (i + 1 < args.length) ? args[i + 1] : null;
+      switch (args[i]) {
+        case "--warmup-ms": warmupMillis = Long.parseLong(value); break;
+        case "--iteration-ms": iterationMillis = Long.parseLong(value); break;
+        case "--iterations": iterations = Integer.parseInt(value); break;
+        case "--flights": numFlights = Integer.parseInt(value); break;
+        case "--cities": numCities = Integer.parseInt(value); break;
+        case "--filter": filter = value; break;
+        case "--db": dbPath = value; break;
+        case "--memory": memory = true; continue;
+        case "--origin": origin = value; break;
+        case "--dest": dest = value; break;
+        case "--day": day = Integer.parseInt(value); break;
+        default:
+          System.err.println("Unknown option " + args[i]);
+          System.exit(1);
+      }
+      ++i;
+    }
+
+    FlightBenchmarks benchmarks
+      = new FlightBenchmarks(new Microbench(warmupMillis, iterationMillis, iterations), filter);
+    System.out.println(Microbench.Result.header());
+    FlightDataGenerator generator = new FlightDataGenerator(numCities, 42L);
+    List<Flight> flights = generator.flights(numFlights);
+    benchmarks.runInMemory(generator, flights);
+
+    if (dbPath != null) {
+      try (ConnectionPool pool = ConnectionPool.fromProperties(dbPath, 4)) {
+        benchmarks.runTransactions(new FlightTransactions(new JdbcFlightStore(pool)),
+                                   (origin == null) ? "Seattle WA" : origin,
+                                   (dest == null) ? "Boston MA" : dest, day);
+      }
+    } else if (memory) {
+      FlightIndex index = FlightDataGenerator.index(flights);
+      benchmarks.runTransactions(new FlightTransactions(new InMemoryFlightStore(index)),
+                                 (origin == null) ? generator.city(0) : origin,
+                                 (dest == null) ? generator.city(1) : dest, day);
+    }
+  }
+
+  private void runInMemory(FlightDataGenerator generator, List<Flight> flights)
+    throws Exception {
+    String password = "correct horse battery staple";
+    byte[] hash = PasswordUtils.hashPassword(password);
+    run("password.hash", () -> PasswordUtils.hashPassword(password));
+    run("password.verify", () -> PasswordUtils.plaintextMatchesHash(password, hash));
+
+    Flight[] sample = flights.subList(0, Math.min(1024, flights.size())).toArray(new Flight[0]);
+    int[] next = {0};
+    run("flight.toString", () -> sample[next[0]++ & (sample.length - 1)].toString());
+
+    List<Itinerary> itineraries = new ArrayList<>();
+    for (int i = 0; i + 1 < sample.length; i += 2) {
+      itineraries.add(new Itinerary(sample[i]));
+      itineraries.add(new Itinerary(sample[i], sample[i + 1]));
+    }
+    Collections.shuffle(itineraries, new Random(7));
+    run("itinerary.sort", () -> {
+      List<Itinerary> copy = new ArrayList<>(itineraries);
+      Collections.sort(copy);
+      return copy;
+    });
+    run("itinerary.toString", () -> itineraries.get(next[0]++ & 1023).toString());
+
+    List<Itinerary> direct = new ArrayList<>(itineraries.subList(0, 512));
+    List<Itinerary> oneStop = new ArrayList<>(itineraries.subList(512, 1024));
+    Collections.sort(direct);
+    Collections.sort(oneStop);
+    run("topk.merge", () -> TopKMerger.merge(List.of(TopKMerger.of(direct),
+                                                     TopKMerger.of(oneStop)), SEARCH_RESULTS));
+
+    FlightIndex index = FlightDataGenerator.index(flights);
+    Random random = new Random(11);
+    int[][] queries = new int[1024][];
+    for (int i = 0; i < queries.length; ++i) {
+      // Searches out of hubs are the expensive ones, so weight the mix towards them
+      queries[i] = new int[] { random.nextInt(generator.hubCount()),
+                               random.nextInt(generator.cityCount()), 1 + random.nextInt(31) };
+    }
+    run("index.direct", () -> {
+      int[] q = queries[next[0]++ & (queries.length - 1)];
+      return index.searchDirect(generator.city(q[0]), generator.city(q[1]), q[2],
+                                SEARCH_RESULTS);
+    });
+    run("index.oneStop", () -> {
+      int[] q = queries[next[0]++ & (queries.length - 1)];
+      return index.searchOneStop(generator.city(q[0]), generator.city(q[1]), q[2],
+                                 SEARCH_RESULTS);
+    });
+    run("index.price", () -> {
+      int[] q = queries[next[0]++ & (queries.length - 1)];
+      return index.search(generator.city(q[0]), generator.city(q[1]), 1,
+                          Itinerary.Ranking.PRICE, q[2], SEARCH_RESULTS);
+    });
+    run("index.pareto", () -> {
+      int[] q = queries[next[0]++ & (queries.length - 1)];
+      return index.search(generator.city(q[0]), generator.city(q[1]), 1,
+                          Itinerary.Ranking.PARETO, q[2], SEARCH_RESULTS);
+    });
+    run("index.days", () -> {
+      int[] q = queries[next[0]++ & (queries.length - 1)];
+      int first = Math.min(q[2], 25);
+      return index.searchDays(generator.city(q[0]), generator.city(q[1]), 1, first, first + 6,
+                              SEARCH_RESULTS);
+    });
+  }
+
+  private void runTransactions(FlightTransactions transactions, String origin, String dest,
+                               int day) throws Exception {
+    transactions.clearTables();
+    try {
+      String password = "benchmark";
+      transactions.createCustomer("bench", password, 0);
+
+      Session session = new Session();
+      run("txn.login", () -> transactions.login(new Session(), "bench", password));
+
+      int[] userCount = {0};
+      run("txn.create", () -> transactions.createCustomer("create" + userCount[0]++,
+                                                          password, 1_000_000));
+
+      transactions.login(session, "bench", password);
+      run("txn.search.direct",
+          () -> transactions.search(session, origin, dest, true, day, SEARCH_RESULTS));
+      run("txn.search.oneStop",
+          () -> transactions.search(session, origin, dest, false, day, SEARCH_RESULTS));
+
+      // A user can hold one reservation per day, so every booking gets a fresh user; the
+      // itinerary rotates through the search results to spread the load on seats
+      int[] bookings = {0};
+      run("txn.book+pay", () -> {
+        int n = bookings[0]++;
+        String user = "book" + n;
+        Session booker = new Session();
+        transactions.createCustomer(user, password, 1_000_000);
+        transactions.login(booker, user, password);
+        transactions.search(booker, origin, dest, false, day, SEARCH_RESULTS);
+        String booked = transactions.book(booker, n % Math.max(1, booker.currSearch.size()));
+        int colon = booked.lastIndexOf(": ");
+        if (!booked.startsWith("Booked") || colon < 0) {
+          return booked;
+        }
+        return transactions.pay(booker, Integer.parseInt(booked.substring(colon + 2).trim()));
+      });
+
+      // A party of GROUP_SEATS booking the best itinerary of each day of a week at once
+      int[] groups = {0};
+      int firstDay = Math.min(day, 25);
+      run("txn.groupbook", () -> {
+        Session booker = new Session();
+        String user = "group" + groups[0]++;
+        transactions.createCustomer(user, password, 1_000_000);
+        transactions.login(booker, user, password);
+        transactions.searchDays(booker, origin, dest, 1, firstDay, firstDay + 6, 1, true);
+        return transactions.book(booker, IntStream.range(0, booker.currSearch.size()).toArray(),
+                                 GROUP_SEATS);
+      });
+
+      Session reader = new Session();
+      transactions.login(reader, "book0", password);
+      run("txn.reservations", () -> transactions.reservations(reader));
+
+      // The same search over a localhost connection, waiting for each response, then with
+      // PIPELINE_DEPTH commands in flight at a time
+      try (FlightServer server = new FlightServer(
+             transactions, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+           FlightClient client = new FlightClient("localhost", server.port())) {
+        String search = "search \"" + origin + "\" \"" + dest + "\" 0 " + day + " "
+          + SEARCH_RESULTS;
+        run("server.search", () -> client.execute(search));
+        run("server.search.pipelined", () -> {
+          for (int i = 0; i < PIPELINE_DEPTH; ++i) {
+            client.send(search);
+          }
+          client.flush();
+          String response = null;
+          for (int i = 0; i < PIPELINE_DEPTH; ++i) {
+            response = client.receive();
+          }
+          return response;
+        });
+      }
+    } finally {
+      transactions.clearTables();
+    }
+    System.out.println();
+    transactions.transactionStats()
+      .forEach((name, stats) -> System.out.println(name + ": " + stats));
+  }
+
+  private void run(String name, Microbench.Op op) throws Exception {
+    if (!name.contains(filter)) {
+      return;
+    }
+    System.out.println(bench.run(name, op));
+  }
+}
@@ -0,0 +1,76 @@
+package flightapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a synthetic FLIGHTS dataset with roughly the shape of the real one: a few hub
+ * cities that most flights touch, a long tail of small cities, and several carriers, spread over
+ * days 1 to 31. The same seed always produces the same flights.
+ */
+final class FlightDataGenerator {
+  private static final String[] CARRIERS = { "AA", "AS", "B6", "DL", "F9", "NK", "UA", "WN" };
+
+  private final int numCities;
+  private final int numHubs;
+  private final long seed;
+
+  FlightDataGenerator(int numCities, long seed) {
+    if (numCities < 2) {
+      throw new IllegalArgumentException("need at least two cities: " + numCities);
+    }
+    this.numCities = numCities;
+    this.numHubs = Math.max(1, numCities / 10);
+    this.seed = seed;
+  }
+
+  /**
+   * @return the name of city {@code i}; cities below {@link #hubCount()} are hubs
+   */
+  String city(int i) {
+    return "City" + i + " ST";
+  }
+
+  int cityCount() {
+    return numCities;
+  }
+
+  int hubCount() {
+    return numHubs;
+  }
+
+  /**
+   * Generates {@code count} flights with fids 1..count.
+   */
+  List<Flight> flights(int count) {
+    Random random = new Random(seed);
+    List<Flight> flights = new ArrayList<>(count);
+    for (int fid = 1; fid <= count; ++fid) {
+      // Half of all flights leave from or arrive at a hub
+      int origin = random.nextBoolean() ? random.nextInt(numHubs) : random.nextInt(numCities);
+      int dest = random.nextBoolean() ? random.nextInt(numHubs) : random.nextInt(numCities);
+      if (dest == origin) {
+        dest = (origin + 1) % numCities;
+      }
+      String carrier = CARRIERS[random.nextInt(CARRIERS.length)];
+      flights.add(new Flight(fid, 1 + random.nextInt(31), carrier,
+                             1 + random.nextInt(9999), city(origin), city(dest),
+                             30 + random.nextInt(600), 1 + random.nextInt(300),
+                             50 + random.nextInt(1000)));
+    }
+    return flights;
+  }
+
+  /**
+   * Builds a search index over {@code flights}.
+   */
+  static FlightIndex index(List<Flight> flights) {
+    FlightIndex.Builder builder = new FlightIndex.Builder();
+    for (Flight f : flights) {
+      builder.add(f.fid, f.dayOfMonth, f.carrierId(), f.flightNum, f.originCity(), f.destCity(),
+                  f.time, f.capacity, f.price);
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,373 @@
+package flightapp;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives many concurrent sessions against the app and checks that the database is still
+ * consistent afterwards.
+ *
+ * Every client owns one session in a {@link SessionManager} and creates and logs in its own
+ * user. It then either replays a script (one command per line, with {@code $user} replaced by
+ * its username) or issues a random mix of search, book, pay and reservations commands. Clients
+ * are paced to a combined target rate; latency is measured from when a command was due rather
+ * than when it was sent, so a stalled server shows up in the percentiles instead of just slowing
+ * the clients down.
+ *
+ * When the run ends it prints per-command latency percentiles and throughput, the retry and
+ * deadlock counters, and checks that
+ * <ul>
+ *   <li>no flight has more reservations than seats,
+ *   <li>no user has a negative balance,
+ *   <li>reservation IDs run from 1 with no gaps, and
+ *   <li>every booking the clients saw succeed is in the Reservations table.
+ * </ul>
+ * The process exits with status 2 if any check fails.
+ *
+ * Usage:
+ * <pre>
+ *   java -cp out:mssql-jdbc.jar flightapp.LoadGenerator (--db dbconn.properties | --memory)
+ *        [--clients n] [--duration-s n] [--rate ops/s] [--pool n] [--script file] [--seed n]
+ *        [--flights n] [--cities n]
+ * </pre>
+ * With {@code --db}, Users and Reservations are cleared before the run. With {@code --memory}
+ * the run needs no database at all: it uses an {@link InMemoryFlightStore} over a generated
+ * dataset of {@code --flights} flights between {@code --cities} cities, and checks the same
+ * invariants against the store.
+ */
+final class LoadGenerator {
+  private static final String POPULAR_ROUTES_SQL
+    = "  SELECT TOP 50 origin_city, dest_city, day_of_month"
+    + "    FROM Flights"
+    + "   WHERE canceled != 1"
+    + " GROUP BY origin_city, dest_city, day_of_month"
+    + " ORDER BY COUNT(*) DESC";
+
+  private static final String OVERBOOKED_FLIGHTS_SQL
+    = "SELECT COUNT(*) FROM Flights f"
+    + "  JOIN (SELECT fid, SUM(seats) AS booked"
+    + "          FROM (SELECT fid1 AS fid, seats FROM Reservations"
+    + "                UNION ALL"
+    + "                SELECT fid2, seats FROM Reservations WHERE fid2 IS NOT NULL"
+    + "                UNION ALL"
+    + "                SELECT l.fid, r.seats FROM ReservationLegs l"
+    + "                  JOIN Reservations r ON r.res_id = l.res_id) AS legs"
+    + "         GROUP BY fid) AS r ON r.fid = f.fid"
+    + " WHERE r.booked > f.capacity";
+
+  private static final String NEGATIVE_BALANCES_SQL
+    = "SELECT COUNT(*) FROM Users WHERE balance < 0";
+
+  private static final String RESERVATION_IDS_SQL
+    = "SELECT COUNT(*), COALESCE(MIN(res_id), 0), COALESCE(MAX(res_id), 0) FROM Reservations";
+
+  private static final String[] MIX = {
+    "search", "search", "search", "search", "search", "book", "book", "pay", "reservations",
+    "reservations"
+  };
+
+  private final SessionManager sessions;
+  private final List<String[]> routes;
+  private final List<String> script;
+  private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+  // Successful bookings seen by the clients, compared against the table once the run is over
+  private final LongAdder booked = new LongAdder();
+
+  private LoadGenerator(SessionManager sessions, List<String[]> routes, List<String> script) {
+    this.sessions = sessions;
+    this.routes = routes;
+    this.script = script;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String dbPath = null;
+    boolean memory = false;
+    int numFlights = 200_000;
+    int numCities = 300;
+    int clients = 16;
+    long durationSeconds = 30;
+    double rate = 0;
+    int poolSize = 8;
+    String scriptPath = null;
+    long seed = 1;
+
+    for (int i = 0; i < args.length; ++i) {
+      String value = (i + 1 < args.length) ? args[i + 1] : null;
+      switch (args[i]) {
+        case "--db": dbPath = value; break;
+        case "--memory": memory = true; continue;
+        case "--flights": numFlights = Integer.parseInt(value); break;
+        case "--cities": numCities = Integer.parseInt(value); break;
+        case "--clients": clients = Integer.parseInt(value); break;
+        case "--duration-s": durationSeconds = Long.parseLong(value); break;
+        case "--rate": rate = Double.parseDouble(value); break;
+        case "--pool": poolSize = Integer.parseInt(value); break;
+        case "--script": scriptPath = value; break;
+        case "--seed": seed = Long.parseLong(value); break;
+        default:
+          System.err.println("Unknown option " + args[i]);
+          System.exit(1);
+      }
+      ++i;
+    }
+    if ((dbPath == null) == !memory) {
+      System.err.println("Exactly one of --db <dbconn.properties> and --memory is required");
+      System.exit(1);
+    }
+
+    List<String> script = (scriptPath == null) ? null : Files.readAllLines(Paths.get(scriptPath));
+    boolean consistent;
+    if (memory) {
+      FlightDataGenerator data = new FlightDataGenerator(numCities, seed);
+      InMemoryFlightStore store
+        = new InMemoryFlightStore(FlightDataGenerator.index(data.flights(numFlights)));
+      LoadGenerator generator = run(new FlightTransactions(store), generatedRoutes(data, seed),
+                                    script, clients, durationSeconds, rate, seed);
+      List<String> violations = store.invariantViolations();
+      violations.forEach(v -> check(false, v));
+      consistent = check(violations.isEmpty(), "in-memory store invariants");
+      consistent &= check(store.reservationCount() == generator.booked.sum(),
+                          "reservations: " + store.reservationCount() + " in the store, "
+                          + generator.booked.sum() + " booked");
+    } else {
+      // Reads go to flightapp.read_server_url if the file names one; the invariants are always
+      // checked on the primary
+      try (ConnectionPool pool = ConnectionPool.fromProperties(dbPath, poolSize);
+           ConnectionPool replica = ConnectionPool.readReplicaFromProperties(dbPath, poolSize)) {
+        JdbcFlightStore store = new JdbcFlightStore(pool, (replica == null) ? pool : replica);
+        LoadGenerator generator = run(new FlightTransactions(store), popularRoutes(pool), script,
+                                      clients, durationSeconds, rate, seed);
+        consistent = checkInvariants(pool, generator.booked.sum());
+      }
+    }
+    System.exit(consistent ? 0 : 2);
+  }
+
+  /**
+   * Clears the store, runs the workload and prints the report.
+   */
+  private static LoadGenerator run(FlightTransactions transactions, List<String[]> routes,
+                                   List<String> script, int clients, long durationSeconds,
+                                   double rate, long seed) throws InterruptedException {
+    transactions.clearTables();
+    LoadGenerator generator;
+    try (SessionManager manager = new SessionManager(transactions)) {
+      generator = new LoadGenerator(manager, routes, script);
+      long elapsed = generator.run(clients, durationSeconds, rate, seed);
+      generator.report(elapsed);
+    }
+    System.out.println();
+    transactions.transactionStats()
+      .forEach((name, stats) -> System.out.println(name + ": " + stats));
+    PasswordHasher hasher = PasswordHasher.getInstance();
+    System.out.println("password hashing: rejected=" + hasher.rejectedCount()
+                       + " mean=" + hasher.meanLatencyMicros() + "us");
+    return generator;
+  }
+
+  /**
+   * Runs {@code clients} sessions for {@code durationSeconds}.
+   *
+   * @return the wall-clock length of the run in nanoseconds
+   */
+  private long run(int clients, long durationSeconds, double rate, long seed)
+    throws InterruptedException {
+    long intervalNanos = (rate <= 0) ? 0 : (long) (clients * 1e9 / rate);
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+    CountDownLatch done = new CountDownLatch(clients);
+    ThreadFactory threads = SessionManager.newThreadFactory("load");
+
+    for (int c = 0; c < clients; ++c) {
+      int client = c;
+      threads.newThread(() -> {
+        try {
+          runClient(client, new Random(seed * 31 + client), intervalNanos, end);
+        } catch (RuntimeException ex) {
+          ex.printStackTrace();
+        } finally {
+          done.countDown();
+        }
+      }).start();
+    }
+    done.await();
+    return System.nanoTime() - start;
+  }
+
+  private void runClient(int client, Random random, long intervalNanos, long end) {
+    Session session = sessions.open();
+    String user = "load" + client;
+    Deque<Integer> unpaid = new ArrayDeque<>();
+    try {
+      execute(session, "create " + user + " secret " + 10_000_000);
+      execute(session, "login " + user + " secret");
+
+      long due = System.nanoTime();
+      for (int step = 0; due < end; ++step) {
+        if (intervalNanos > 0) {
+          long wait = due - System.nanoTime();
+          if (wait > 0) {
+            LockSupport.parkNanos(wait);
+          }
+        } else {
+          due = System.nanoTime();
+        }
+
+        String command = (script != null)
+          ? script.get(step % script.size()).replace("$user", user)
+          : randomCommand(random, unpaid);
+        String response = execute(session, command, due);
+
+        if (response.startsWith("Booked")) {
+          booked.increment();
+          unpaid.addLast(Integer.parseInt(response.substring(response.lastIndexOf(' ') + 1)
+                                          .trim()));
+        }
+        due += intervalNanos;
+      }
+    } finally {
+      sessions.close(session);
+    }
+  }
+
+  private String randomCommand(Random random, Deque<Integer> unpaid) {
+    String[] route = routes.get(random.nextInt(routes.size()));
+    switch (MIX[random.nextInt(MIX.length)]) {
+      case "book":
+        return "book " + random.nextInt(5);
+      case "pay":
+        return unpaid.isEmpty() ? "reservations" : "pay " + unpaid.removeFirst();
+      case "reservations":
+        return "reservations";
+      default:
+        return "search \"" + route[0] + "\" \"" + route[1] + "\" " + random.nextInt(2) + " "
+          + route[2] + " " + (1 + random.nextInt(10));
+    }
+  }
+
+  private String execute(Session session, String command) {
+    return execute(session, command, System.nanoTime());
+  }
+
+  /**
+   * Runs one command and records its latency, measured from {@code due}.
+   */
+  private String execute(Session session, String command, long due) {
+    String name = command.split(" ", 2)[0];
+    String response;
+    try {
+      response = sessions.submit(session, command).join();
+    } catch (RuntimeException ex) {
+      response = "Failed: " + ex;
+    }
+    latencies.computeIfAbsent(name, k -> new LatencyHistogram())
+      .record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due));
+    if (response.contains("ailed") || response.startsWith("Error")) {
+      failures.computeIfAbsent(name, k -> new LongAdder()).increment();
+    }
+    return response;
+  }
+
+  private void report(long elapsedNanos) {
+    double seconds = elapsedNanos / 1e9;
+    long total = 0;
+    for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      LongAdder failed = failures.get(entry.getKey());
+      System.out.printf("%-13s %8.1f ops/s  failed=%d  %s%n", entry.getKey(),
+                        histogram.count() / seconds, (failed == null) ? 0 : failed.sum(),
+                        histogram.summary());
+      total += histogram.count();
+    }
+    System.out.printf("%-13s %8.1f ops/s over %.1f s%n", "total", total / seconds, seconds);
+  }
+
+  /**
+   * Routes between hubs of a generated dataset, which is where most of its flights are.
+   */
+  private static List<String[]> generatedRoutes(FlightDataGenerator data, long seed) {
+    Random random = new Random(seed);
+    List<String[]> routes = new ArrayList<>();
+    for (int i = 0; i < 50; ++i) {
+      int origin = random.nextInt(data.hubCount());
+      int dest = (origin + 1 + random.nextInt(data.cityCount() - 1)) % data.cityCount();
+      routes.add(new String[] { data.city(origin), data.city(dest),
+                                String.valueOf(1 + random.nextInt(31)) });
+    }
+    return routes;
+  }
+
+  private static List<String[]> popularRoutes(ConnectionPool pool) throws SQLException {
+    List<String[]> routes = new ArrayList<>();
+    try (PooledConnection conn = pool.borrow();
+         Statement stmt = conn.createStatement();
+         ResultSet results = stmt.executeQuery(POPULAR_ROUTES_SQL)) {
+      while (results.next()) {
+        routes.add(new String[] { results.getString("origin_city"),
+                                  results.getString("dest_city"),
+                                  String.valueOf(results.getInt("day_of_month")) });
+      }
+    }
+    if (routes.isEmpty()) {
+      throw new SQLException("FLIGHTS is empty");
+    }
+    return routes;
+  }
+
+  /**
+   * @return true if every invariant holds
+   */
+  private static boolean checkInvariants(ConnectionPool pool, long bookingsSeen)
+    throws SQLException {
+    boolean ok = true;
+    try (PooledConnection conn = pool.borrow();
+         Statement stmt = conn.createStatement()) {
+      long overbooked = count(stmt, OVERBOOKED_FLIGHTS_SQL);
+      ok &= check(overbooked == 0, "overbooked flights: " + overbooked);
+
+      long negative = count(stmt, NEGATIVE_BALANCES_SQL);
+      ok &= check(negative == 0, "users with a negative balance: " + negative);
+
+      try (ResultSet results = stmt.executeQuery(RESERVATION_IDS_SQL)) {
+        results.next();
+        long n = results.getLong(1);
+        long min = results.getLong(2);
+        long max = results.getLong(3);
+        ok &= check(n == 0 || (min == 1 && max == n),
+                    "reservation IDs: " + n + " rows, " + min + " to " + max);
+        ok &= check(n == bookingsSeen,
+                    "reservations: " + n + " in the table, " + bookingsSeen + " booked");
+      }
+    }
+    return ok;
+  }
+
+  private static long count(Statement stmt, String sql) throws SQLException {
+    try (ResultSet results = stmt.executeQuery(sql)) {
+      results.next();
+      return results.getLong(1);
+    }
+  }
+
+  private static boolean check(boolean holds, String description) {
+    System.out.println((holds ? "ok      " : "FAILED  ") + description);
+    return holds;
+  }
+}
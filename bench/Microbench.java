@@ -0,0 +1,143 @@
+package flightapp;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Minimal benchmark harness: runs an operation in a tight loop for a fixed time after a warmup,
+ * and reports throughput and how many bytes each call allocated.
+ *
+ * Allocation is measured with the HotSpot per-thread allocation counter, the same source JMH's
+ * gc profiler uses, so "B/op" is comparable between runs on the same JVM. On JVMs without the
+ * counter it is reported as n/a.
+ *
+ * Every measurement iteration is timed separately; the reported throughput is the median, with
+ * the min and max alongside so noisy runs are easy to spot.
+ */
+final class Microbench {
+
+  /**
+   * One call of the code under test. The return value is consumed so the JIT cannot drop the
+   * call as dead code.
+   */
+  @FunctionalInterface
+  interface Op {
+    Object run() throws Exception;
+  }
+
+  static final class Result {
+    final String name;
+    final double opsPerSec;
+    final double minOpsPerSec;
+    final double maxOpsPerSec;
+    final double bytesPerOp;
+
+    Result(String name, double opsPerSec, double minOpsPerSec, double maxOpsPerSec,
+           double bytesPerOp) {
+      this.name = name;
+      this.opsPerSec = opsPerSec;
+      this.minOpsPerSec = minOpsPerSec;
+      this.maxOpsPerSec = maxOpsPerSec;
+      this.bytesPerOp = bytesPerOp;
+    }
+
+    /**
+     * @return megabytes allocated per second at the measured throughput, or NaN if unknown
+     */
+    double allocMbPerSec() {
+      return bytesPerOp * opsPerSec / (1024.0 * 1024.0);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT, "%-28s %14.1f %12.3f %10s %10s   [%.1f .. %.1f]",
+                           name, opsPerSec, 1e6 / opsPerSec,
+                           Double.isNaN(bytesPerOp) ? "n/a" : String.format(Locale.ROOT, "%.0f",
+                                                                            bytesPerOp),
+                           Double.isNaN(bytesPerOp) ? "n/a" : String.format(Locale.ROOT, "%.1f",
+                                                                            allocMbPerSec()),
+                           minOpsPerSec, maxOpsPerSec);
+    }
+
+    static String header() {
+      return String.format(Locale.ROOT, "%-28s %14s %12s %10s %10s   %s",
+                           "benchmark", "ops/s", "us/op", "B/op", "MB/s", "[min .. max ops/s]");
+    }
+  }
+
+  private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+
+  private final long warmupMillis;
+  private final long iterationMillis;
+  private final int iterations;
+
+  // Results of every call are folded in here so none of them is dead code
+  private volatile int sink;
+
+  Microbench(long warmupMillis, long iterationMillis, int iterations) {
+    if (iterations < 1) {
+      throw new IllegalArgumentException("iterations must be at least 1: " + iterations);
+    }
+    this.warmupMillis = warmupMillis;
+    this.iterationMillis = iterationMillis;
+    this.iterations = iterations;
+  }
+
+  Result run(String name, Op op) throws Exception {
+    loop(op, warmupMillis);
+
+    double[] rates = new double[iterations];
+    long totalOps = 0;
+    long totalBytes = 0;
+    for (int i = 0; i < iterations; ++i) {
+      long bytesBefore = allocatedBytes();
+      long start = System.nanoTime();
+      long ops = loop(op, iterationMillis);
+      long elapsed = System.nanoTime() - start;
+      totalBytes += allocatedBytes() - bytesBefore;
+      totalOps += ops;
+      rates[i] = ops * 1e9 / elapsed;
+    }
+
+    Arrays.sort(rates);
+    double bytesPerOp = (THREADS == null) ? Double.NaN : (double) totalBytes / totalOps;
+    return new Result(name, rates[rates.length / 2], rates[0], rates[rates.length - 1],
+                      bytesPerOp);
+  }
+
+  /**
+   * Calls {@code op} until {@code millis} have passed.
+   *
+   * @return the number of calls made
+   */
+  private long loop(Op op, long millis) throws Exception {
+    long deadline = System.nanoTime() + millis * 1_000_000L;
+    long ops = 0;
+    int acc = 0;
+    do {
+      Object result = op.run();
+      acc += (result == null) ? 0 : System.identityHashCode(result);
+      ++ops;
+    } while (System.nanoTime() < deadline);
+    sink += acc;
+    return ops;
+  }
+
+  private static long allocatedBytes() {
+    return (THREADS == null) ? 0 : THREADS.getCurrentThreadAllocatedBytes();
+  }
+
+  private static com.sun.management.ThreadMXBean allocationCounter() {
+    if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+      return null;
+    }
+    com.sun.management.ThreadMXBean threads
+      = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    if (!threads.isThreadAllocatedMemorySupported()) {
+      return null;
+    }
+    threads.setThreadAllocatedMemoryEnabled(true);
+    return threads;
+  }
+}
@@ -0,0 +1,140 @@
+package flightapp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the transactions behind each {@code transaction_*} method of
+ * {@link Query}. By default they run against an {@link InMemoryFlightStore} over a generated
+ * dataset. With the {@code db} parameter they run end to end against that database instead;
+ * FLIGHTS must be loaded there, and Users and Reservations are cleared before and after, like
+ * {@link FlightBenchmarks} does.
+ *
+ * The Maven build packages these with the JMH runner. Run them with the gc profiler for the
+ * allocation rate:
+ * <pre>
+ *   mvn -B package
+ *   java -jar target/benchmarks.jar TransactionBenchmarks [-p db=dbconn.properties] -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionBenchmarks {
+  private static final String PASSWORD = "benchmark";
+  private static final int SEARCH_RESULTS = 10;
+
+  // Path of a dbconn.properties file, or empty for the in-memory store
+  @Param("")
+  public String db;
+
+  // Empty for Seattle WA and Boston MA in the database, or the first two generated cities
+  @Param("")
+  public String origin;
+
+  @Param("")
+  public String dest;
+
+  @Param("1")
+  public int day;
+
+  private ConnectionPool pool;
+  private FlightTransactions transactions;
+  private String from;
+  private String to;
+  private Session searcher;
+  private Session reader;
+  private int users;
+
+  @Setup
+  public void open() throws Exception {
+    if (db.isEmpty()) {
+      FlightDataGenerator generator = new FlightDataGenerator(300, 42L);
+      FlightIndex index = FlightDataGenerator.index(generator.flights(200_000));
+      transactions = new FlightTransactions(new InMemoryFlightStore(index));
+      from = origin.isEmpty() ? generator.city(0) : origin;
+      to = dest.isEmpty() ? generator.city(1) : dest;
+    } else {
+      pool = ConnectionPool.fromProperties(db, 4);
+      transactions = new FlightTransactions(new JdbcFlightStore(pool));
+      from = origin.isEmpty() ? "Seattle WA" : origin;
+      to = dest.isEmpty() ? "Boston MA" : dest;
+    }
+    transactions.clearTables();
+    transactions.createCustomer("bench", PASSWORD, 0);
+
+    searcher = new Session();
+    transactions.login(searcher, "bench", PASSWORD);
+
+    // Reservations are listed for a user who holds one
+    reader = new Session();
+    transactions.createCustomer("reader", PASSWORD, 1_000_000);
+    transactions.login(reader, "reader", PASSWORD);
+    transactions.search(reader, from, to, false, day, SEARCH_RESULTS);
+    transactions.book(reader, 0);
+  }
+
+  @TearDown
+  public void close() {
+    transactions.clearTables();
+    if (pool != null) {
+      pool.close();
+    }
+  }
+
+  @Benchmark
+  public String login() {
+    return transactions.login(new Session(), "bench", PASSWORD);
+  }
+
+  @Benchmark
+  public String createCustomer() {
+    return transactions.createCustomer("create" + users++, PASSWORD, 1_000_000);
+  }
+
+  @Benchmark
+  public String searchDirect() {
+    return transactions.search(searcher, from, to, true, day, SEARCH_RESULTS);
+  }
+
+  @Benchmark
+  public String searchOneStop() {
+    return transactions.search(searcher, from, to, false, day, SEARCH_RESULTS);
+  }
+
+  // A user can hold one reservation per day, so every booking gets a fresh user; the itinerary
+  // rotates through the search results to spread the load on seats
+  @Benchmark
+  public String bookAndPay() {
+    int n = users++;
+    Session booker = new Session();
+    transactions.createCustomer("book" + n, PASSWORD, 1_000_000);
+    transactions.login(booker, "book" + n, PASSWORD);
+    transactions.search(booker, from, to, false, day, SEARCH_RESULTS);
+    String booked = transactions.book(booker, n % Math.max(1, booker.currSearch.size()));
+    int colon = booked.lastIndexOf(": ");
+    if (!booked.startsWith("Booked") || colon < 0) {
+      return booked;
+    }
+    return transactions.pay(booker, Integer.parseInt(booked.substring(colon + 2).trim()));
+  }
+
+  @Benchmark
+  public String reservations() {
+    return transactions.reservations(reader);
+  }
+}
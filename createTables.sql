@@ -6,4 +6,27 @@ CREATE TABLE Reservations(res_id INT PRIMARY KEY,
                           paid INT NOT NULL,
                           username VARCHAR(20) NOT NULL REFERENCES Users(username),
                           fid1 INT NOT NULL REFERENCES FLIGHTS(fid),
-                          fid2 INT REFERENCES FLIGHTS(fid));
\ No newline at end of file
+                          fid2 INT REFERENCES FLIGHTS(fid),
+                          seats INT NOT NULL DEFAULT 1);
+
+-- The third and later flights of an itinerary with more than one stop; leg counts from 2
+CREATE TABLE ReservationLegs(res_id INT REFERENCES Reservations(res_id),
+                             leg INT,
+                             fid INT NOT NULL REFERENCES FLIGHTS(fid),
+                             PRIMARY KEY(res_id, leg));
+
+-- Single-row sequence for reservation IDs, see ReservationIdAllocator
+CREATE TABLE ReservationIds(last_id INT NOT NULL);
+INSERT INTO ReservationIds VALUES (0);
+
+-- Seats booked per flight, see SeatInventory. An existing database can be backfilled with:
+--   INSERT INTO SeatInventory
+--   SELECT fid, SUM(seats) FROM (SELECT fid1 AS fid, seats FROM Reservations
+--                                UNION ALL
+--                                SELECT fid2, seats FROM Reservations WHERE fid2 IS NOT NULL
+--                                UNION ALL
+--                                SELECT l.fid, r.seats FROM ReservationLegs l
+--                                  JOIN Reservations r ON r.res_id = l.res_id) AS legs
+--   GROUP BY fid;
+CREATE TABLE SeatInventory(fid INT PRIMARY KEY REFERENCES FLIGHTS(fid),
+                           booked INT NOT NULL);
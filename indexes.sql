@@ -1,3 +1,5 @@
 create index Flights_idx1 on Flights(origin_city,dest_city,actual_time);
 create index Flights_idx2 on Flights(actual_time);
-create index Flights_idx3 on Flights(dest_city,origin_city,actual_time);
\ No newline at end of file
+create index Flights_idx3 on Flights(dest_city,origin_city,actual_time);
+create index Flights_idx4 on Flights(origin_city,dest_city,day_of_month,price);
+create index Flights_idx5 on Flights(dest_city,origin_city,day_of_month,price);
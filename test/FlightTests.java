@@ -0,0 +1,459 @@
+package flightapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the transactions end to end through {@link CommandDispatcher} against an
+ * {@link InMemoryFlightStore} over a generated dataset, so they can be checked without a
+ * database. Every check gets a fresh store and an empty search cache, and ends by checking the
+ * store's invariants.
+ *
+ * Usage:
+ * <pre>
+ *   java -cp out flightapp.FlightTests [--filter substring]
+ * </pre>
+ * Exits with status 1 if any check fails.
+ */
+final class FlightTests {
+  private static final int NUM_CITIES = 15;
+  private static final int NUM_FLIGHTS = 2_500;
+  private static final long SEED = 7L;
+
+  @FunctionalInterface
+  interface Check {
+    void run(Fixture f) throws Exception;
+  }
+
+  /**
+   * A fresh store over the generated flights, with a dispatcher in front of it.
+   */
+  static final class Fixture {
+    final FlightDataGenerator generator = new FlightDataGenerator(NUM_CITIES, SEED);
+    final List<Flight> flights = generator.flights(NUM_FLIGHTS);
+    final FlightIndex index = FlightDataGenerator.index(flights);
+    final InMemoryFlightStore store = new InMemoryFlightStore(index);
+    final FlightTransactions transactions = new FlightTransactions(store);
+    final CommandDispatcher dispatcher = new CommandDispatcher(transactions);
+
+    Fixture() {
+      SearchCache.getInstance().clear();
+    }
+
+    String run(Session session, String command) {
+      return dispatcher.execute(session, command);
+    }
+
+    /**
+     * Creates {@code username} with password "pw" and logs a new session in as that user.
+     */
+    Session login(String username, int balance) {
+      Session session = new Session();
+      expect(run(session, "create " + username + " pw " + balance),
+             "Created user " + username + "\n");
+      expect(run(session, "login " + username + " pw"), "Logged in as " + username + "\n");
+      return session;
+    }
+
+    /**
+     * Searches from city {@code from} to city {@code to} and returns the itineraries found,
+     * which are also the session's last search.
+     */
+    List<Itinerary> search(Session session, int from, int to, boolean direct, int day,
+                           int limit) {
+      String output = run(session, "search \"" + generator.city(from) + "\" \""
+                          + generator.city(to) + "\" " + (direct ? 1 : 0) + " " + day + " "
+                          + limit);
+      check(!output.startsWith("Failed"), "search failed: " + output);
+      return (session.currSearch == null) ? List.of() : session.currSearch;
+    }
+  }
+
+  private final Map<String, Check> checks = new LinkedHashMap<>();
+
+  private FlightTests() {
+    checks.put("create.login", FlightTests::createAndLogin);
+    checks.put("not.logged.in", FlightTests::notLoggedIn);
+    checks.put("book.pay", FlightTests::bookAndPay);
+    checks.put("book.same.day", FlightTests::bookSameDay);
+    checks.put("pay.insufficient", FlightTests::payInsufficientFunds);
+    checks.put("book.capacity", FlightTests::bookUpToCapacity);
+    checks.put("groupbook", FlightTests::groupBook);
+    checks.put("groupbook.huge", FlightTests::groupBookHuge);
+    checks.put("search.huge.limit", FlightTests::searchHugeLimit);
+    checks.put("topk.huge.k", FlightTests::mergeHugeK);
+    checks.put("search.exhaustive", FlightTests::searchMatchesEnumeration);
+    checks.put("server.end.of.stream", FlightTests::serverAnswersBeforeEndOfStream);
+    checks.put("encoder.null.names", FlightTests::encoderWritesNullNames);
+  }
+
+  public static void main(String[] args) {
+    String filter = "";
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (args[i].equals("--filter")) {
+        filter = args[i + 1];
+      } else {
+        System.err.println("Unknown option " + args[i]);
+        System.exit(1);
+      }
+    }
+
+    int failures = new FlightTests().runAll(filter);
+    System.exit((failures == 0) ? 0 : 1);
+  }
+
+  private int runAll(String filter) {
+    int run = 0;
+    int failures = 0;
+    for (Map.Entry<String, Check> entry : checks.entrySet()) {
+      if (!entry.getKey().contains(filter)) {
+        continue;
+      }
+      ++run;
+      try {
+        Fixture f = new Fixture();
+        entry.getValue().run(f);
+        List<String> violations = f.store.invariantViolations();
+        check(violations.isEmpty(), "invariants violated: " + violations);
+        System.out.println("PASS " + entry.getKey());
+      } catch (Exception | AssertionError ex) {
+        ++failures;
+        System.out.println("FAIL " + entry.getKey() + ": " + ex);
+      }
+    }
+    System.out.println(run + " checks, " + failures + " failed");
+    return failures;
+  }
+
+  private static void createAndLogin(Fixture f) {
+    Session session = new Session();
+    expect(f.run(session, "create Alice pw 100"), "Created user Alice\n");
+    expect(f.run(session, "create alice other 100"), "Failed to create user\n");
+    expect(f.run(session, "create bob pw -1"), "Failed to create user\n");
+    expect(f.run(session, "login alice wrong"), "Login failed\n");
+    expect(f.run(session, "login nobody pw"), "Login failed\n");
+    expect(f.run(session, "login ALICE pw"), "Logged in as alice\n");
+    expect(f.run(session, "login alice pw"), "User already logged in\n");
+  }
+
+  private static void notLoggedIn(Fixture f) {
+    Session session = new Session();
+    f.search(session, 0, 1, false, 1, 5);
+    expect(f.run(session, "book 0"), "Cannot book reservations, not logged in\n");
+    expect(f.run(session, "pay 1"), "Cannot pay, not logged in\n");
+    expect(f.run(session, "reservations"), "Cannot view reservations, not logged in\n");
+  }
+
+  private static void bookAndPay(Fixture f) {
+    Session session = f.login("alice", 100_000);
+    expect(f.run(session, "reservations"), "No reservations found\n");
+    expect(f.run(session, "book 0"), "No such itinerary 0\n");
+
+    List<Itinerary> found = f.search(session, 0, 1, false, 1, 5);
+    check(!found.isEmpty(), "no itineraries from city 0 to city 1");
+    Itinerary booked = found.get(0);
+    expect(f.run(session, "book 0"), "Booked flight(s), reservation ID: 1\n");
+    expect(f.run(session, "reservations"), "Reservation 1 paid: false:\n" + booked);
+    expect(f.run(session, "pay 1"),
+           "Paid reservation: 1 remaining balance: " + (100_000 - booked.totalPrice) + "\n");
+    expect(f.run(session, "pay 1"), "Cannot find unpaid reservation 1 under user: alice\n");
+    expect(f.run(session, "reservations"), "Reservation 1 paid: true:\n" + booked);
+
+    // Reservations belong to the user who made them
+    Session other = f.login("bob", 100_000);
+    expect(f.run(other, "pay 1"), "Cannot find unpaid reservation 1 under user: bob\n");
+    expect(f.run(other, "reservations"), "No reservations found\n");
+  }
+
+  private static void bookSameDay(Fixture f) {
+    Session session = f.login("alice", 100_000);
+    List<Itinerary> found = f.search(session, 0, 1, false, 1, 5);
+    check(found.size() >= 2, "fewer than two itineraries from city 0 to city 1");
+    expect(f.run(session, "book 0"), "Booked flight(s), reservation ID: 1\n");
+    expect(f.run(session, "book 1"), "You cannot book two flights in the same day\n");
+
+    f.search(session, 0, 1, false, 2, 5);
+    expect(f.run(session, "book 0"), "Booked flight(s), reservation ID: 2\n");
+  }
+
+  private static void payInsufficientFunds(Fixture f) {
+    Session session = f.login("alice", 10);
+    List<Itinerary> found = f.search(session, 0, 1, false, 1, 5);
+    check(!found.isEmpty(), "no itineraries from city 0 to city 1");
+    expect(f.run(session, "book 0"), "Booked flight(s), reservation ID: 1\n");
+    expect(f.run(session, "pay 1"), "User has only 10 in account but itinerary costs "
+                                    + found.get(0).totalPrice + "\n");
+    expect(f.run(session, "reservations"), "Reservation 1 paid: false:\n" + found.get(0));
+  }
+
+  // Many users race for the seats of one flight; exactly its capacity of them get one
+  private static void bookUpToCapacity(Fixture f) throws Exception {
+    Session probe = new Session();
+    List<Itinerary> found = f.search(probe, 0, 1, true, 1, 100);
+    check(!found.isEmpty(), "no direct flights from city 0 to city 1");
+    int smallest = 0;
+    for (int i = 1; i < found.size(); ++i) {
+      if (found.get(i).leg(0).capacity < found.get(smallest).leg(0).capacity) {
+        smallest = i;
+      }
+    }
+    int capacity = found.get(smallest).leg(0).capacity;
+    int users = capacity + 20;
+
+    List<Session> sessions = new ArrayList<>(users);
+    for (int u = 0; u < users; ++u) {
+      Session session = f.login("user" + u, 100_000);
+      f.search(session, 0, 1, true, 1, 100);
+      sessions.add(session);
+    }
+
+    String id = Integer.toString(smallest);
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> results = new ArrayList<>(users);
+      for (Session session : sessions) {
+        results.add(pool.submit(() -> f.run(session, "book " + id)));
+      }
+      int booked = 0;
+      for (Future<String> result : results) {
+        String output = result.get();
+        if (output.startsWith("Booked")) {
+          ++booked;
+        } else {
+          expect(output, "Booking failed\n");
+        }
+      }
+      check(booked == capacity, booked + " bookings for " + capacity + " seats");
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static void groupBook(Fixture f) {
+    Session session = f.login("alice", 1_000_000);
+    List<Itinerary> found = f.search(session, 0, 1, false, 1, 5);
+    check(!found.isEmpty(), "no itineraries from city 0 to city 1");
+    expect(f.run(session, "groupbook 0 0"), "Number of seats must be positive\n");
+    expect(f.run(session, "groupbook 2 0"),
+           "Booked flight(s), reservation IDs: 1 (2 seats each)\n");
+    expect(f.run(session, "pay 1"), "Paid reservation: 1 remaining balance: "
+                                    + (1_000_000 - 2 * found.get(0).totalPrice) + "\n");
+    expect(f.run(session, "reservations"), "Reservation 1 paid: true seats: 2:\n" + found.get(0));
+  }
+
+  // Seat counts near Integer.MAX_VALUE must not wrap around and pass the capacity check
+  private static void groupBookHuge(Fixture f) throws Exception {
+    Session first = f.login("bob", 100_000);
+    List<Itinerary> found = f.search(first, 0, 1, false, 1, 5);
+    check(!found.isEmpty(), "no itineraries from city 0 to city 1");
+    Itinerary itn = found.get(0);
+    expect(f.run(first, "book 0"), "Booked flight(s), reservation ID: 1\n");
+
+    Session session = f.login("alice", Integer.MAX_VALUE);
+    f.search(session, 0, 1, false, 1, 5);
+    expect(f.run(session, "groupbook " + Integer.MAX_VALUE + " 0"), "Booking failed\n");
+    expect(f.run(session, "groupbook " + (itn.leg(0).capacity + 1) + " 0"),
+           "Booking failed\n");
+    // The store checks on its own as well
+    check(f.store.bookAll("alice", List.of(itn), Integer.MAX_VALUE) < 0,
+          "booked Integer.MAX_VALUE seats");
+    expect(f.run(session, "reservations"), "No reservations found\n");
+
+    int seats = Integer.MAX_VALUE;
+    for (int i = 0; i < itn.getNumFlights(); ++i) {
+      seats = Math.min(seats, itn.leg(i).capacity - 1);
+    }
+    if (seats > 1) {
+      expect(f.run(session, "groupbook " + seats + " 0"),
+             "Booked flight(s), reservation IDs: 2 (" + seats + " seats each)\n");
+      expect(f.run(session, "pay 2"), "Paid reservation: 2 remaining balance: "
+             + (Integer.MAX_VALUE - (long) seats * itn.totalPrice) + "\n");
+    }
+  }
+
+  // num_itineraries sizes no allocation up front, so any value is safe to ask for
+  private static void searchHugeLimit(Fixture f) {
+    Session session = new Session();
+    List<Itinerary> all = f.search(session, 0, 1, false, 1, Integer.MAX_VALUE);
+    List<Itinerary> first = f.search(session, 0, 1, false, 1, 10_000);
+    check(!all.isEmpty(), "no itineraries from city 0 to city 1");
+    check(all.toString().equals(first.toString()),
+          "a huge limit found " + all.size() + " itineraries, not " + first.size());
+  }
+
+  private static void mergeHugeK(Fixture f) throws Exception {
+    int[] streamed = {0};
+    TopKMerger.Source<Integer> stream = () -> (streamed[0] < 3) ? 2 * streamed[0]++ : null;
+    List<Integer> merged = TopKMerger.merge(List.of(TopKMerger.of(List.of(1, 3, 5)), stream),
+                                            Integer.MAX_VALUE);
+    check(merged.equals(List.of(0, 1, 2, 3, 4, 5)), "merged " + merged);
+    check(TopKMerger.merge(List.of(TopKMerger.of(List.of(1, 3))), 1).equals(List.of(1)),
+          "did not stop at k");
+  }
+
+  // Every search of small graphs, one dense and one sparse, returns the head of the full list
+  // of itineraries, enumerated by brute force and ranked
+  private static void searchMatchesEnumeration(Fixture f) {
+    searchMatchesEnumeration(new FlightDataGenerator(8, 11L), 2_000);
+    searchMatchesEnumeration(f.generator, f.flights.size());
+  }
+
+  private static void searchMatchesEnumeration(FlightDataGenerator generator, int numFlights) {
+    List<Flight> flights = generator.flights(numFlights);
+    FlightIndex index = FlightDataGenerator.index(flights);
+    for (int day = 1; day <= 6; ++day) {
+      for (int from = 0; from < generator.cityCount(); ++from) {
+        for (int to = 0; to < generator.cityCount(); ++to) {
+          if (from == to) {
+            continue;
+          }
+          for (int maxStops = 0; maxStops < Itinerary.MAX_LEGS; ++maxStops) {
+            List<Itinerary> all = new ArrayList<>();
+            enumerate(flights, generator.city(from), generator.city(to), day, maxStops + 1,
+                      new ArrayList<>(), all);
+            for (Itinerary.Ranking ranking : Itinerary.Ranking.values()) {
+              List<Itinerary> ranked = rank(all, ranking);
+              for (int limit : new int[] {1, 3, 10, 40}) {
+                List<Itinerary> found = index.search(generator.city(from), generator.city(to),
+                                                     maxStops, ranking, day, limit);
+                List<Itinerary> expected = ranked.subList(0, Math.min(limit, ranked.size()));
+                check(found.toString().equals(expected.toString()),
+                      ranking + " search from " + from + " to " + to + " on day " + day
+                      + " with " + maxStops + " stops and limit " + limit + " found "
+                      + found.size() + " itineraries, expected " + expected.size());
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  // Sorts itineraries as a search ranks them. The Pareto front is found the way PARETO_SQL
+  // finds it: by duration, then price, then fids, keeping each one cheaper than all before it.
+  private static List<Itinerary> rank(List<Itinerary> itineraries, Itinerary.Ranking ranking) {
+    List<Itinerary> sorted = new ArrayList<>(itineraries);
+    if (ranking != Itinerary.Ranking.PARETO) {
+      sorted.sort(ranking.order());
+      return sorted;
+    }
+    sorted.sort(Comparator.<Itinerary>comparingInt(itn -> itn.totalDuration)
+                .thenComparingInt(itn -> itn.totalPrice)
+                .thenComparing(Comparator.naturalOrder()));
+    List<Itinerary> front = new ArrayList<>();
+    for (Itinerary itn : sorted) {
+      if (front.isEmpty() || itn.totalPrice < front.get(front.size() - 1).totalPrice) {
+        front.add(itn);
+      }
+    }
+    return front;
+  }
+
+  // Adds every itinerary that extends legs to dest within maxLegs flights, never visiting a
+  // city twice
+  private static void enumerate(List<Flight> flights, String origin, String dest, int day,
+                                int maxLegs, List<Flight> legs, List<Itinerary> out) {
+    String city = legs.isEmpty() ? origin : legs.get(legs.size() - 1).destCity();
+    for (Flight next : flights) {
+      if (next.dayOfMonth != day || !next.originCity().equals(city)
+          || next.destCity().equals(origin)) {
+        continue;
+      }
+      boolean visited = false;
+      for (Flight leg : legs) {
+        visited |= leg.destCity().equals(next.destCity());
+      }
+      if (visited) {
+        continue;
+      }
+      legs.add(next);
+      if (next.destCity().equals(dest)) {
+        out.add(new Itinerary(legs.toArray(new Flight[0])));
+      } else if (legs.size() < maxLegs) {
+        enumerate(flights, origin, dest, day, maxLegs, legs, out);
+      }
+      legs.remove(legs.size() - 1);
+    }
+  }
+
+  // A client that sends several pipelines' worth of commands and closes its side gets every
+  // response, in order, before the server closes the connection
+  private static void serverAnswersBeforeEndOfStream(Fixture f) throws Exception {
+    List<String> commands = new ArrayList<>();
+    List<String> expected = new ArrayList<>();
+    Session local = new Session();
+    // Short enough for the server to read all of them at once
+    for (int i = 0; i < 160; ++i) {
+      String command = (i % 8 == 0)
+        ? "search \"" + f.generator.city(0) + "\" \"" + f.generator.city(1 + i % 5) + "\" 0 1 3"
+        : "login u" + i + " pw";
+      commands.add(command);
+      expected.add(f.run(local, command));
+    }
+
+    try (FlightServer server = new FlightServer(f.transactions, new InetSocketAddress(0));
+         Socket socket = new Socket("localhost", server.port())) {
+      socket.setSoTimeout(10_000);
+      DataOutputStream out
+        = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      for (String command : commands) {
+        byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      out.flush();
+      socket.shutdownOutput();
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      for (int i = 0; i < commands.size(); ++i) {
+        byte[] response = new byte[in.readInt()];
+        in.readFully(response);
+        expect(new String(response, StandardCharsets.UTF_8), expected.get(i));
+      }
+      check(in.read() < 0, "the server did not close the connection");
+    }
+  }
+
+  // A flight loaded with a null carrier or city encodes the same as its text response
+  private static void encoderWritesNullNames(Fixture f) throws Exception {
+    List<Itinerary> itineraries = List.of(new Itinerary(
+      new Flight(1, 1, null, 10, f.generator.city(0), null, 60, 5, 100),
+      new Flight(2, 1, "AA", 20, null, f.generator.city(1), 70, 5, 200)));
+    ResponseSink.Text text = new ResponseSink.Text();
+    text.itineraries(itineraries);
+
+    ResponseEncoder encoder = new ResponseEncoder(64);
+    encoder.itineraries(itineraries);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    check(encoder.writeTo(Channels.newChannel(bytes)) == 0, "the frame was not fully written");
+    byte[] frame = bytes.toByteArray();
+    expect(new String(frame, 4, frame.length - 4, StandardCharsets.UTF_8), text.text());
+  }
+
+  static void expect(String actual, String expected) {
+    if (!expected.equals(actual)) {
+      throw new AssertionError("expected <" + expected + "> but got <" + actual + ">");
+    }
+  }
+
+  static void check(boolean condition, String message) {
+    if (!condition) {
+      throw new AssertionError(message);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package flightapp;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks every {@code *_SQL} constant in the app and the load generator, the statements
+ * {@link Metrics} names.
+ *
+ * Without a database it only looks for string literals that were concatenated without a space
+ * between them, which glue a keyword to the word before or after it ({@code "FROM Reservations
+ * r" + "LEFT JOIN ..."} becomes {@code rLEFT JOIN}). With {@code --db} it also has the server
+ * compile each statement against the schema by preparing it and asking for its parameter
+ * metadata, which fails on syntax errors and unknown tables or columns; nothing is executed.
+ *
+ * Usage:
+ * <pre>
+ *   java -cp out:mssql-jdbc.jar flightapp.SqlSmokeCheck [--db dbconn.properties]
+ * </pre>
+ * Exits with status 1 if any statement fails.
+ */
+final class SqlSmokeCheck {
+  private static final List<Class<?>> OWNERS
+    = List.of(JdbcFlightStore.class, SeatInventory.class, ReservationIdAllocator.class,
+              FlightCache.class, FlightIndex.class, LoadGenerator.class);
+
+  private static final String KEYWORDS
+    = "SELECT|FROM|WHERE|AND|OR|ON|JOIN|LEFT|INNER|CROSS|APPLY|GROUP|ORDER|BY|HAVING|UNION"
+      + "|INSERT|INTO|VALUES|UPDATE|SET|DELETE|OUTPUT|WITH|AS|IN|NOT|EXISTS|BETWEEN";
+  // A keyword run into the lowercase word, digit, parameter or parenthesis before it, or into
+  // the lowercase word after it
+  private static final Pattern GLUED
+    = Pattern.compile("[a-z0-9_?)](?:" + KEYWORDS + ")\\b|\\b(?:" + KEYWORDS + ")[a-z]");
+
+  public static void main(String[] args) throws Exception {
+    String dbPath = null;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (args[i].equals("--db")) {
+        dbPath = args[i + 1];
+      } else {
+        System.err.println("Unknown option " + args[i]);
+        System.exit(1);
+      }
+    }
+
+    Map<String, String> statements = statements();
+    int failures = lint(statements);
+    if (dbPath != null) {
+      try (ConnectionPool pool = ConnectionPool.fromProperties(dbPath, 1)) {
+        failures += compile(statements, pool);
+      }
+    }
+    System.out.println(statements.size() + " statements, " + failures + " failed");
+    System.exit((failures == 0) ? 0 : 1);
+  }
+
+  /**
+   * @return the text of every {@code *_SQL} constant, by {@code Class.FIELD}
+   */
+  static Map<String, String> statements() throws IllegalAccessException {
+    Map<String, String> statements = new TreeMap<>();
+    for (Class<?> owner : OWNERS) {
+      for (Field field : owner.getDeclaredFields()) {
+        int mods = field.getModifiers();
+        if (Modifier.isStatic(mods) && Modifier.isFinal(mods) && field.getType() == String.class
+            && field.getName().endsWith("_SQL")) {
+          field.setAccessible(true);
+          statements.put(owner.getSimpleName() + "." + field.getName(), (String) field.get(null));
+        }
+      }
+    }
+    return statements;
+  }
+
+  /**
+   * @return the number of statements with a keyword glued to a neighbouring word
+   */
+  static int lint(Map<String, String> statements) {
+    int failures = 0;
+    for (Map.Entry<String, String> entry : statements.entrySet()) {
+      Matcher m = GLUED.matcher(entry.getValue());
+      if (m.find()) {
+        ++failures;
+        System.out.println("FAIL " + entry.getKey() + ": missing space at \"" + m.group() + "\"");
+      }
+    }
+    return failures;
+  }
+
+  private static int compile(Map<String, String> statements, ConnectionPool pool)
+      throws SQLException {
+    int failures = 0;
+    PooledConnection conn = pool.borrow();
+    try {
+      for (Map.Entry<String, String> entry : statements.entrySet()) {
+        try (PreparedStatement stmt = conn.connection().prepareStatement(entry.getValue())) {
+          stmt.getParameterMetaData();
+          System.out.println("PASS " + entry.getKey());
+        } catch (SQLException ex) {
+          ++failures;
+          System.out.println("FAIL " + entry.getKey() + ": " + ex.getMessage());
+        }
+      }
+    } finally {
+      pool.release(conn);
+    }
+    return failures;
+  }
+}